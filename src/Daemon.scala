@@ -0,0 +1,134 @@
+package tapy
+
+import java.io._
+import java.net.{InetAddress, ServerSocket}
+import java.nio.file.Files
+import java.security.MessageDigest
+import tapy.cfg._
+import tapy.dfa._
+import tapy.lattices._
+import tapy.typeanalysis.TypeAnalysis
+import tapy.typeanalysis.Options
+
+/**
+ * Long-running analysis process, which keeps the CFGs of modules and the results of the
+ * analyzed programs in memory between requests. Requests are read one per line from stdin,
+ * or from the connections to a local port, and each gets a one line response that starts
+ * with "ok" or "error":
+ *
+ *   analyze FILE            analyzes FILE, unless none of the files of its last result changed
+ *   changed FILE            drops the results that depend on FILE, e.g. from an editor hook
+ *   query FILE VARIABLE     the value of a module variable of FILE at its exit
+ *   quit                    closes the connection (ends the daemon on stdin)
+ *   shutdown                ends the daemon
+ *
+ * The result of a program depends on the source of the program and of the modules it
+ * imports. A result is kept along with the digests of these files, and is reused while they
+ * are unchanged. Other programs are not affected by a change.
+ */
+class Daemon(options: Options) {
+
+  // The result of an analyzed program: the heap at its exit, and the digests of the files it depends on
+  private case class Result(heap: HeapLattice.Elt, digests: Map[File, String], visits: Int, exhausted: Boolean)
+
+  private var results: Map[File, Result] = Map()
+
+  private val cfgCache = new CFGCache(options.cfgCache.map(new File(_)).getOrElse(null))
+
+  private var running = true
+
+  /** Serves the requests of stdin, or of connections to port if it is not 0. */
+  def run(port: Int): Unit = {
+    if (port == 0)
+      return serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out, true))
+
+    val server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())
+    try {
+      while (running) {
+        val socket = server.accept()
+        try {
+          serve(new BufferedReader(new InputStreamReader(socket.getInputStream())), new PrintWriter(socket.getOutputStream(), true))
+        } finally {
+          socket.close()
+        }
+      }
+    } finally {
+      server.close()
+    }
+  }
+
+  private def serve(in: BufferedReader, out: PrintWriter): Unit = {
+    var line = in.readLine()
+    while (line != null && running) {
+      line.trim().split("\\s+", 3).toList match {
+        case List("quit") => return
+        case List("shutdown") => running = false; out.println("ok")
+        case List("") =>
+        case request => out.println(respond(request))
+      }
+      line = in.readLine()
+    }
+  }
+
+  private def respond(request: List[String]): String = {
+    val now = System.currentTimeMillis()
+    try {
+      request match {
+        case List("analyze", file) =>
+          val (result, analyzed) = getResult(new File(file).getCanonicalFile())
+          "ok " + (if (analyzed) "analyzed" else "cached") + " in " + (System.currentTimeMillis() - now) + " ms (" + result.visits + " node visits" +
+            (if (result.exhausted) ", budget exhausted)" else ")")
+
+        case List("changed", file) =>
+          val changed = new File(file).getCanonicalFile()
+          val dropped = results.filter(_._2.digests.contains(changed)).keySet
+          results = results -- dropped
+          "ok dropped " + dropped.size + " results"
+
+        case List("query", file, variable) =>
+          val (result, _) = getResult(new File(file).getCanonicalFile())
+          result.heap match {
+            case HeapLattice.Concrete(_) =>
+              val value = ObjectLattice.getPropertyValue(HeapLattice.getObject(result.heap, ModuleScopeObjectLabel("__main__")), variable)
+              "ok " + ValueLattice.toString(value)
+
+            case _ =>
+              "error the result is top"
+          }
+
+        case _ =>
+          "error unknown request: " + request.mkString(" ")
+      }
+    } catch {
+      case e: Exception => "error " + e
+      case e: StackOverflowError => "error " + e
+    }
+  }
+
+  /** The result of file, and whether it had to be analyzed. */
+  private def getResult(file: File): (Result, Boolean) = {
+    results.get(file) match {
+      case Some(result) if result.digests.forall((entry) => digest(entry._1) == entry._2) => (result, false)
+      case _ =>
+        val result = analyze(file)
+        results = results + (file -> result)
+        (result, true)
+    }
+  }
+
+  private def analyze(file: File): Result = {
+    val cfg = cfgCache.getCFG(file, "__main__")
+    val analysis = new TypeAnalysis(cfg, options)
+    val worklist = new Worklist[AnalysisLattice.Elt](analysis, AnalysisLattice, cfg, file.getParent() + "/", options)
+    worklist.cfgCache = cfgCache
+    val solution = try worklist.run() finally ValueLattice.clearCaches()
+
+    val files = worklist.moduleFiles.map(_.getCanonicalFile()) + file
+    Result(AnalysisLattice.getHeap(cfg.exitNodes.head, solution), files.map((file) => (file, digest(file))).toMap, worklist.visits, worklist.exhausted)
+  }
+
+  // The digest of the source of a file, empty if it does not exist
+  private def digest(file: File): String =
+    if (!file.isFile()) ""
+    else MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath())).map("%02x".format(_)).mkString
+}
@@ -68,6 +68,63 @@ object GraphvizExporter {
 
   def getNodeById(nodeId : NodeId, nodes: List[Node]) : Option[Node] = nodes.find((node) => node.id == nodeId)
 
+  /**
+   * Collapses the chains of nodes that are always visited in sequence into blocks: a node and
+   * its only successor are merged when the node is the only predecessor of the successor, no
+   * exception edge leads to the successor, and both have the same exception targets. A block
+   * gets the id of its last node and the labels of its nodes in order, its incoming edges are
+   * those of its first node, and its outgoing edges those of its last node.
+   *
+   * One pass over an index of the edges, rather than a search for a pair to merge per merge.
+   */
+  def blockify(nodes: List[Node], edges: List[Edge], exceptEdges: List[Edge]) : (List[Node], List[Edge], List[Edge]) = {
+    val ids = nodes.map(_.id).toSet
+    val successors = edges.groupBy(_.from)
+    val predecessorCounts = edges.groupBy(_.to).map({case (id, edges) => (id, edges.size)})
+    val exceptTargets = exceptEdges.groupBy(_.from).map({case (id, edges) => (id, edges.map(_.to).toSet)})
+    val exceptTargeted = exceptEdges.map(_.to).toSet
+
+    // The successor that a node is merged with
+    def next(id: NodeId): Option[NodeId] = successors.getOrElse(id, List()) match {
+      case List(edge) if edge.to != id && ids.contains(edge.to) && predecessorCounts(edge.to) == 1 && !exceptTargeted.contains(edge.to) &&
+                         exceptTargets.getOrElse(id, Set()) == exceptTargets.getOrElse(edge.to, Set()) => Some(edge.to)
+      case _ => None
+    }
+    val nexts = nodes.foldLeft(Map() : Map[NodeId, NodeId])((acc, node) => next(node.id) match {
+      case Some(to) => acc + ((node.id, to))
+      case None => acc
+    })
+
+    // The chain that starts at first, which ends when it returns to first on a cycle
+    def chain(first: NodeId): List[NodeId] = {
+      def follow(id: NodeId, acc: List[NodeId]): List[NodeId] = nexts.get(id) match {
+        case Some(to) if to != first => follow(to, to :: acc)
+        case _ => acc.reverse
+      }
+      follow(first, List(first))
+    }
+
+    // Chains start at the nodes that are not merged into a predecessor, except on cycles of merged nodes
+    val merged = nexts.values.toSet
+    val (chains, _) = (nodes.filter((node) => !merged.contains(node.id)) ::: nodes.filter((node) => merged.contains(node.id))).foldLeft((List() : List[List[NodeId]], Set() : Set[NodeId]))((acc, node) => {
+      val (chains, visited) = acc
+      if (visited.contains(node.id)) acc else {
+        val ids = chain(node.id)
+        (ids :: chains, visited ++ ids)
+      }
+    })
+
+    val byId = nodes.map((node) => (node.id, node)).toMap
+    val blocks = chains.foldLeft(Map() : Map[NodeId, NodeId])((acc, ids) => ids.foldLeft(acc)((acc, id) => acc + ((id, ids.last))))
+    val contracted = chains.foldLeft(Set() : Set[(NodeId, NodeId)])((acc, ids) => acc ++ ids.zip(ids.tail))
+    def block(id: NodeId): NodeId = blocks.getOrElse(id, id)
+
+    val blockNodes = chains.map((ids) => if (ids.size == 1) byId(ids.head) else Node(ids.map(byId(_).label).mkString(escape("\n")), ids.last))
+    val blockEdges = edges.filter((edge) => !contracted.contains((edge.from, edge.to))).map((edge) => Edge(block(edge.from), block(edge.to), edge.label, edge.style))
+    val blockExceptEdges = exceptEdges.filter((edge) => block(edge.from) == edge.from).map((edge) => Edge(edge.from, block(edge.to), edge.label, edge.style))
+    (blockNodes, blockEdges, blockExceptEdges)
+  }
+
   def escape(s: String): String = {
     s.map(_ match { 
             case '\n' => "\\n"
@@ -8,16 +8,42 @@ import org.python.antlr.base._
 import org.python.antlr.runtime._
 import org.python.antlr.runtime.tree._
 import java.io._
+import java.util.concurrent.{Callable, ForkJoinPool}
 import tapy.export._
 import tapy.dfa._
 import tapy.lattices._
 import tapy.typeanalysis.TypeAnalysis
+import tapy.typeanalysis.Options
 import tapy.lattices.HeapLattice
 import tapy.cfg.ReadVariableNode
 
 object Main {
+  var options = Options()
+
+  private val WidenAfter = "--widen-after=([0-9]+)".r
+  private val MaxVisits = "--max-visits=([0-9]+)".r
+  private val TimeLimit = "--time-limit=([0-9]+)".r
+  private val Jobs = "--jobs=([1-9][0-9]*)".r
+  private val CacheDir = "--cfg-cache=(.+)".r
+  private val SnapshotDir = "--builtin-snapshot=(.+)".r
+  private val ContextDepth = "--context-depth=([0-9]+)".r
+  private val MaxContexts = "--max-contexts=([1-9][0-9]*)".r
+  private val DaemonPort = "--daemon=([0-9]+)".r
+  private val Export = "--export=(none|dot|png)".r
+  private val MetricsFormat = "--metrics=(json|csv)".r
+  private val Progress = "--progress=([1-9][0-9]*)".r
+
   def main(args: Array[String]): Unit = {
-    args.foreach((f) => {
+    val (flags, files) = args.partition(_.startsWith("--"))
+    options = parseOptions(flags)
+
+    // Serve requests on stdin, or on a local port, instead of analyzing the given files (see Daemon)
+    flags.collectFirst({case "--daemon" => 0; case DaemonPort(port) => port.toInt}) match {
+      case Some(port) => return new Daemon(options).run(port)
+      case None =>
+    }
+
+    files.foreach((f) => {
       var file = new File(f)
       if (file.isFile()){
         analyzeFile(file)
@@ -27,8 +53,42 @@ object Main {
         System.err.println("Couldn't open: " + f)
       }
     })
+
+    GraphvizFiles.finish()
   }
 
+  /** The options given by flags; sets the mode of GraphvizFiles as a side effect. */
+  def parseOptions(flags: Seq[String]): Options =
+    flags.foldLeft(Options()) {(acc, flag) =>
+      flag match {
+        case "--gc" => acc.copy(garbageCollection = true)
+        case "--summaries" => acc.copy(functionSummaries = true)
+        case "--object-sensitive" => acc.copy(objectSensitivity = true)
+        case "--blocks" => acc.copy(basicBlocks = true)
+        case ContextDepth(k) => acc.copy(contextDepth = k.toInt)
+        case MaxContexts(n) => acc.copy(maxContexts = n.toInt)
+        case WidenAfter(n) => acc.copy(widenAfter = n.toInt)
+        case MaxVisits(n) => acc.copy(maxVisits = n.toInt)
+        case TimeLimit(ms) => acc.copy(timeLimit = ms.toLong)
+        case Jobs(n) => acc.copy(jobs = n.toInt)
+        case CacheDir(dir) => acc.copy(cfgCache = Some(dir))
+        case SnapshotDir(dir) => acc.copy(builtinSnapshot = Some(dir))
+        case MetricsFormat(format) => acc.copy(metrics = Some(format))
+        case Progress(ms) => acc.copy(progressInterval = ms.toLong)
+        case "--daemon" | DaemonPort(_) => acc
+        case Export(mode) =>
+          GraphvizFiles.mode = mode match {
+            case "none" => GraphvizFiles.Off
+            case "dot" => GraphvizFiles.Dot
+            case "png" => GraphvizFiles.Png
+          }
+          acc
+        case _ =>
+          System.err.println("Unknown option: " + flag)
+          acc
+      }
+    }
+
   def analyzeFile(file: File) : Unit = {
     val parser: BaseParser = new BaseParser(new ANTLRFileStream(file.getPath()), file.getPath(), "ascii")
     var (dir,fname,fext) = splitFilename(file)
@@ -56,9 +116,24 @@ object Main {
       println("\n----------\n")
       println("Generation analysis result of \"" + file + "\"\n")
       now = System.currentTimeMillis();
-      val worklist = new Worklist[AnalysisLattice.Elt](new TypeAnalysis(cfgMin), AnalysisLattice, cfgMin, dir)
+      val analysis = new TypeAnalysis(cfgMin, options)
+      val worklist = new Worklist[AnalysisLattice.Elt](analysis, AnalysisLattice, cfgMin, dir, options)
       val solution = worklist.run()
-      println("...done in " + (System.currentTimeMillis() - now) + " ms")
+      println("...done in " + (System.currentTimeMillis() - now) + " ms (" + worklist.visits + " node visits)")
+      if (worklist.exhausted)
+        println("...analysis budget exhausted, the result is top")
+      if (options.garbageCollection)
+        println("...removed " + analysis.collectedObjects + " unreachable heap objects")
+      if (options.functionSummaries)
+        println("...function summaries: " + analysis.summaryHits + " hits, " + analysis.summaryMisses + " misses")
+      if (options.contextDepth > 0)
+        println("...analyzed " + analysis.contextCopies + " copies of functions in contexts")
+      options.metrics.foreach {(format) =>
+        analysis.metrics.write(new File(dir + fname + ".metrics." + format))
+        println("...wrote metrics to " + dir + fname + ".metrics." + format)
+      }
+      if (options.basicBlocks)
+        println("...stored the states of " + ProgramStateLattice.getStates(AnalysisLattice.getProgramState(solution)).size + " of " + worklist.cfg.nodes.size + " nodes")
   
       println("\n----------\n")
       println("Pretty printing CFG of \"" + file + "\"\n")
@@ -72,12 +147,13 @@ object Main {
       }
       
       AnalysisLattice.getProgramState(solution) match {
-        case ProgramStateLattice.Concrete(map) =>
-          map.foreach{(entry) =>
-            val (node, state) = entry
+        case ProgramStateLattice.Concrete(_, _) =>
+          // The states inside blocks are not stored, and are recomputed for the dumps
+          worklist.cfg.nodes.foreach{(node) =>
             node match {
-              case node: ReadVariableNode =>
-                if (node.variable.startsWith("__Analysis_Dump_")) {
+              case node: ReadVariableNode if node.variable.startsWith("__Analysis_Dump_") =>
+                val state = node.getState(worklist.materialize(node, solution))
+                if (state != StateLattice.bottom) {
                   val name = node.variable.replaceFirst("__Analysis_Dump_", "").replace("__", "")
                   
                   println("\n----------\n")
@@ -101,7 +177,7 @@ object Main {
       println("...done in " + (System.currentTimeMillis() - now) + " ms")
       */
     } catch {
-      case e: Exception => e.printStackTrace()
+      case e: Exception => e.printStackTrace(scala.Console.err)
     }
   }
 
@@ -112,16 +188,52 @@ object Main {
     out.close()
   }
   
+  /**
+   * Analyzes the files of dir and its subdirectories on a pool of options.jobs threads.
+   * The output of each file is buffered, and printed in the order of the files.
+   */
   def analyzeDirectory(dir : File) : Unit = {
-    dir.listFiles().foreach((file) => {
-      if (file.isFile()){
-        analyzeFile(file)
-      } else if (file.isDirectory()) {
-        analyzeDirectory(file)
-      }
-    })
+    if (options.jobs <= 1)
+      return listFiles(dir).foreach(analyzeFile)
+
+    val pool = new ForkJoinPool(options.jobs)
+    try {
+      val tasks = listFiles(dir).map((file) => pool.submit(new Callable[(String, String)] {
+        def call(): (String, String) = {
+          val out = new ByteArrayOutputStream()
+          val err = new ByteArrayOutputStream()
+          scala.Console.withOut(new PrintStream(out, true)) {
+            scala.Console.withErr(new PrintStream(err, true)) {
+              try {
+                analyzeFile(file)
+              } catch {
+                // A file that fails, e.g. with a stack overflow, must not take the other files down
+                case e: Exception => e.printStackTrace(scala.Console.err)
+                case e: StackOverflowError => e.printStackTrace(scala.Console.err)
+              }
+            }
+          }
+          (out.toString(), err.toString())
+        }
+      }))
+
+      tasks.foreach((task) => {
+        val (out, err) = task.get()
+        System.out.print(out)
+        System.err.print(err)
+      })
+    } finally {
+      pool.shutdown()
+    }
   }
 
+  def listFiles(dir : File) : List[File] =
+    dir.listFiles().toList.flatMap((file) => {
+      if (file.isFile()) List(file)
+      else if (file.isDirectory()) listFiles(file)
+      else List()
+    })
+
   def splitFilename(f : File) : (String,String,String) = {
     var dir = f.getParent() + "/"
     var file = f.getName()
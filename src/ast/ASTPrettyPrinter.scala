@@ -82,11 +82,13 @@ object ASTPrettyPrinter extends VisitorBase[String] {
     case _ => return "<except handler not implemented>"
   }
   
-  var indent : String = ""
-    
+  // Per thread, such that files can be pretty printed in parallel (see Main.analyzeDirectory)
+  private val indentation = new ThreadLocal[String] { override def initialValue(): String = "" }
+  
+  def indent: String = indentation.get()
   def indent(line: String): String = indent + line
-  def incIndent(): Unit = indent += "  "
-  def decIndent(): Unit = indent = indent.replaceFirst("  ", "")
+  def incIndent(): Unit = indentation.set(indent + "  ")
+  def decIndent(): Unit = indentation.set(indent.replaceFirst("  ", ""))
   
   /* Abstract methods from VisitorBase */
   
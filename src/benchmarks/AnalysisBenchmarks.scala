@@ -0,0 +1,260 @@
+package tapy.benchmarks
+
+import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import org.python.antlr._
+import org.python.antlr.runtime._
+import tapy.cfg._
+import tapy.dfa._
+import tapy.lattices._
+import tapy.typeanalysis._
+
+/**
+ * Benchmarks of the analysis at three levels (see Harness):
+ *
+ *   micro   joins and comparisons of values (along with the nested tuples that ValueLattice
+ *           replaced), comparison of property maps, call graph lookups and MRO linearization
+ *   meso    CFG generation (CFGGeneratorVisitor, minify and normalize) of large generated modules
+ *   macro   the analysis of the programs of test/programs and test/analysis, and of generated
+ *           programs with many classes, many functions and deep call chains, as well as the
+ *           analysis of test/programs in contexts (see contexts)
+ *
+ * Writes the results as JSON to the file given by --out, such that the results of two builds
+ * can be diffed. --level=NAME runs only one level (repeatable), --filter=REGEX only the
+ * benchmarks whose name matches.
+ *
+ * Run with: make bench, or
+ *   scala -J-Xss64m -cp "bin:lib/jython-2.7-b1.jar" tapy.benchmarks.AnalysisBenchmarks [--out=FILE] [--level=micro|meso|macro] [--filter=REGEX]
+ */
+object AnalysisBenchmarks {
+
+  private val Out = "--out=(.+)".r
+  private val Level = "--level=(micro|meso|macro)".r
+  private val Filter = "--filter=(.+)".r
+
+  // Sizes of the generated programs
+  val sizes = List(10, 20, 40)
+
+  // The settings that the programs of test/programs are analyzed with in contexts, besides the default (see ContextSensitivity)
+  val contexts = List("k1" -> Options(contextDepth = 1), "k2" -> Options(contextDepth = 2), "object1" -> Options(contextDepth = 1, objectSensitivity = true))
+
+  // The previous representation of ValueLattice elements, as the baseline of micro.ValueLattice
+  object TupleValueLattice extends ProductLattice(
+    UndefinedLattice, new ProductLattice(
+    NoneLattice, new ProductLattice(
+    NotImplementedLattice, new ProductLattice(
+    EllipsisLattice, new ProductLattice(
+    BooleanLattice, new ProductLattice(
+    IntegerLattice, new ProductLattice(
+    FloatLattice, new ProductLattice(
+    LongLattice, new ProductLattice(
+    ComplexLattice, new ProductLattice(
+    StringLattice, ObjectLabelLattice))))))))))
+
+  private var filter = ".*".r
+
+  def main(args: Array[String]): Unit = {
+    val out = args.collectFirst({case Out(file) => file})
+    val levels = args.collect({case Level(level) => level}).toSet
+    args.collectFirst({case Filter(regex) => regex}).foreach((regex) => filter = regex.r)
+
+    val dir = Files.createTempDirectory("tapy-bench").toFile()
+    Files.copy(new File("test/programs/__builtin__.py").toPath(), new File(dir, "__builtin__.py").toPath(), StandardCopyOption.REPLACE_EXISTING)
+
+    println("%-56s  %4s  %3s  %27s  %-5s  %19s".format("Benchmark", "Mode", "Cnt", "Score +- Error", "Units", "Alloc"))
+    val results =
+      (if (levels.isEmpty || levels.contains("micro")) microBenchmarks(dir) else Nil) ++
+      (if (levels.isEmpty || levels.contains("meso")) mesoBenchmarks(dir) else Nil) ++
+      (if (levels.isEmpty || levels.contains("macro")) macroBenchmarks(dir) else Nil)
+
+    out.foreach {(file) =>
+      val writer = new PrintStream(new FileOutputStream(file))
+      try writer.print(Harness.toJson(results)) finally writer.close()
+      println("Wrote " + results.size + " results to " + file)
+    }
+  }
+
+  private def run(benchmark: String, unit: String, warmup: Int, iterations: Int, opsPerIteration: Int)(op: () => Any): List[Harness.Result] =
+    if (filter.findFirstIn(benchmark).isEmpty) Nil
+    else List(Harness.measure(benchmark, unit, warmup, iterations, opsPerIteration)(op))
+
+  /*
+   * Micro
+   */
+
+  private def microBenchmarks(dir: File): List[Harness.Result] = {
+    val values = ((0 until 16).map((i) => ValueLattice.setInteger(i)) ++ (0 until 16).map((i) => ValueLattice.setString("s" + i)) ++
+                  List(ValueLattice.setBoolean(true), ValueLattice.setBoolean(false), ValueLattice.setNone(NoneLattice.top), ValueLattice.setUndefined())).toArray
+    var i = 0
+    val join = run("micro.ValueLattice.leastUpperBound", "ns", 5, 10, 200000) {() =>
+      i += 1
+      ValueLattice.leastUpperBound(values(i % values.length), values((i * 7 + 3) % values.length))
+    }
+    val equals = run("micro.ValueLattice.equals", "ns", 5, 10, 200000) {() =>
+      i += 1
+      values(i % values.length) == values((i * 7 + 3) % values.length)
+    }
+
+    val tuples = values.map((value) => {
+      val f = value.fields
+      (f._1, (f._2, (f._3, (f._4, (f._5, (f._6, (f._7, (f._8, (f._9, (f._10, f._11))))))))))
+    })
+    val tupleJoin = run("micro.TupleValueLattice.leastUpperBound", "ns", 5, 10, 200000) {() =>
+      i += 1
+      TupleValueLattice.leastUpperBound(tuples(i % tuples.length), tuples((i * 7 + 3) % tuples.length))
+    }
+    val tupleEquals = run("micro.TupleValueLattice.equals", "ns", 5, 10, 200000) {() =>
+      i += 1
+      tuples(i % tuples.length) == tuples((i * 7 + 3) % tuples.length)
+    }
+
+    // Two property maps of the size of a class object, the second one greater than the first
+    val properties = (0 until 64).foldLeft(PropertiesLattice.bottom) {(acc, i) =>
+      PropertiesLattice.setProperty(acc, "p" + i, PropertyLattice.setValue(ValueLattice.setInteger(i)))
+    }
+    val greaterProperties = PropertiesLattice.setProperty(properties, "p0", PropertyLattice.setValue(ValueLattice.setInteger(0, ValueLattice.setString("s"))))
+    val compare = run("micro.MapLattice.compare", "ns", 5, 10, 20000) {() => PropertiesLattice.compare(properties, greaterProperties)}
+
+    // A call graph with the edges of 200 call sites into 20 functions
+    val functions = (0 until 20).map((i) => NoOpNode("entry " + i)).toArray
+    val callNodes = (0 until 200).map((i) => NoOpNode("call " + i)).toArray
+    val callGraph = CallGraphLattice.addEdges(CallGraphLattice.bottom, callNodes.zipWithIndex.map {(entry) =>
+      (null, entry._1, null, functions(entry._2 % functions.length), true, true): CallGraphLattice.Edge
+    }.toSet)
+    val predecessors = run("micro.CallGraphLattice.getPredecessors", "ns", 5, 10, 100000) {() =>
+      i += 1
+      CallGraphLattice.getPredecessors(callGraph, functions(i % functions.length))
+    }
+
+    // The linearization of the last class of layers of classes that each inherit from both classes of the layer above,
+    // with no linearizations of earlier runs
+    val (classLabel, state) = analyzeClassHierarchy(dir, 6)
+    val linearize = run("micro.ClassMRO.linearize", "us", 3, 10, 200) {() => new ClassMRO().linearize(classLabel, state)}
+
+    join ++ equals ++ tupleJoin ++ tupleEquals ++ compare ++ predecessors ++ linearize
+  }
+
+  private def analyzeClassHierarchy(dir: File, layers: Int): (ObjectLabel, StateLattice.Elt) = {
+    val source = new StringBuilder("class A0(object):\n  pass\nclass B0(object):\n  pass\n")
+    (1 to layers).foreach {(i) =>
+      source.append(s"class A$i(A${i - 1}, B${i - 1}):\n  pass\nclass B$i(A${i - 1}, B${i - 1}):\n  pass\n")
+    }
+    val file = write(dir, "mro", source.toString)
+    val cfg = CFGCache.build(file, "__main__")
+    val solution = analyze(cfg, file)
+    val state = cfg.exitNodes.head.getState(solution)
+    val value = ObjectLattice.getPropertyValue(HeapLattice.getObject(StateLattice.getHeap(state), ModuleScopeObjectLabel("__main__")), "A" + layers)
+    (ValueLattice.getObjectLabels(value).head, state)
+  }
+
+  /*
+   * Meso
+   */
+
+  private def mesoBenchmarks(dir: File): List[Harness.Result] =
+    sizes.flatMap {(size) =>
+      val file = write(dir, "module" + size, generateModule(size))
+      val ast = new BaseParser(new ANTLRFileStream(file.getPath()), file.getPath(), "ascii").parseModule()
+      run("meso.CFGGeneratorVisitor.module" + size, "ms", 1, 5, 1) {() => ast.accept(new CFGGeneratorVisitor("__main__")).minify().normalize()}
+    }
+
+  // A module of size functions with branches, loops, exception handlers and calls, and a class of size methods
+  private def generateModule(size: Int): String = {
+    val source = new StringBuilder()
+    (0 until size).foreach {(i) =>
+      source.append(s"def f$i(a, b):\n" +
+                    s"  x = a + $i\n" +
+                    s"  if x > b:\n" +
+                    s"    x = x - b\n" +
+                    s"  else:\n" +
+                    s"    x = b * 2\n" +
+                    s"  while x < 100:\n" +
+                    s"    x = x + a\n" +
+                    s"  try:\n" +
+                    s"    y = x / b\n" +
+                    s"  except ZeroDivisionError:\n" +
+                    s"    y = 0\n" +
+                    s"  return [x, y, str(x)]\n")
+    }
+    source.append("class C(object):\n")
+    (0 until size).foreach((i) => source.append(s"  def m$i(self, a):\n    self.v$i = f$i(a, $i)\n    return self.v$i\n"))
+    (0 until size).foreach((i) => source.append(s"r$i = f$i($i, 2)\n"))
+    source.toString
+  }
+
+  /*
+   * Macro
+   */
+
+  private def macroBenchmarks(dir: File): List[Harness.Result] = {
+    val programs = List("programs", "analysis").flatMap {(name) =>
+      new File("test/" + name).listFiles().filter((file) => file.isFile() && file.getName().endsWith(".py") && file.getName() != "__builtin__.py").sortBy(_.getName()).map((file) => (name, file))
+    }
+    val generated = sizes.flatMap {(size) =>
+      List(write(dir, "classes" + size, generateClasses(size)), write(dir, "functions" + size, generateFunctions(size)), write(dir, "callchain" + size, generateCallChain(size))).map((file) => ("generated", file))
+    }
+
+    val runs =
+      (programs ++ generated).map((entry) => ("macro.Worklist.run." + entry._1, entry._2, Options())) ++
+      contexts.flatMap((context) => programs.filter(_._1 == "programs").map((entry) => ("macro.Worklist.run." + context._1 + ".programs", entry._2, context._2)))
+
+    runs.flatMap {(entry) =>
+      val (group, file, options) = entry
+      analyzeProgram(group + "." + file.getName().stripSuffix(".py"), file, options)
+    }
+  }
+
+  // Counts the node visits, the copies of functions in contexts, the nodes of the final CFG and whether the budget was exhausted
+  private def analyzeProgram(benchmark: String, file: File, options: Options): List[Harness.Result] = {
+    val cfg = CFGCache.build(file, "__main__")
+    var analysis: TypeAnalysis = null
+    var worklist: Worklist[AnalysisLattice.Elt] = null
+    run(benchmark, "ms", 1, 3, 1) {() =>
+      analysis = new TypeAnalysis(cfg, options)
+      worklist = new Worklist[AnalysisLattice.Elt](analysis, AnalysisLattice, cfg, file.getParent() + "/", options)
+      worklist.run()
+    }.map {(result) =>
+      Harness.count(result, List("visits" -> worklist.visits.toLong, "copies" -> analysis.contextCopies.toLong,
+                                 "nodes" -> worklist.cfg.nodes.size.toLong, "exhausted" -> (if (worklist.exhausted) 1L else 0L)))
+    }
+  }
+
+  // size classes, each inheriting from the previous one and overriding a method, and an instance of each
+  private def generateClasses(size: Int): String = {
+    val source = new StringBuilder("class C0(object):\n  def __init__(self):\n    self.v = 0\n  def get(self):\n    return self.v\n")
+    (1 until size).foreach((i) => source.append(s"class C$i(C${i - 1}):\n  def get(self):\n    return self.v + $i\n"))
+    (0 until size).foreach((i) => source.append(s"x$i = C$i().get()\n"))
+    source.toString
+  }
+
+  // size functions of two arguments, each called once
+  private def generateFunctions(size: Int): String = {
+    val source = new StringBuilder()
+    (0 until size).foreach((i) => source.append(s"def f$i(a, b):\n  if a < b:\n    return a + $i\n  return b\n"))
+    (0 until size).foreach((i) => source.append(s"x$i = f$i($i, 5)\n"))
+    source.toString
+  }
+
+  // A chain of size functions that each call the next one
+  private def generateCallChain(size: Int): String = {
+    val source = new StringBuilder()
+    (0 until size - 1).foreach((i) => source.append(s"def f$i(a):\n  return f${i + 1}(a) + 1\n"))
+    source.append(s"def f${size - 1}(a):\n  return a\n")
+    source.append("x = f0(1)\n")
+    source.toString
+  }
+
+  /*
+   * Helpers
+   */
+
+  private def write(dir: File, name: String, source: String): File = {
+    val file = new File(dir, name + ".py")
+    Files.write(file.toPath(), source.getBytes("UTF-8"))
+    file
+  }
+
+  // The CFG is not changed by the analysis (the worklist builds a new one when it grows), so it is shared between runs
+  private def analyze(cfg: ControlFlowGraph, file: File, options: Options = Options()): AnalysisLattice.Elt =
+    new Worklist[AnalysisLattice.Elt](new TypeAnalysis(cfg, options), AnalysisLattice, cfg, file.getParent() + "/", options).run()
+}
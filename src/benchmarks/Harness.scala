@@ -0,0 +1,81 @@
+package tapy.benchmarks
+
+/**
+ * A small benchmark harness in the style of JMH: each benchmark is run for a number of
+ * warmup iterations, whose results are dropped, and then for a number of measured
+ * iterations. The score is the average time of an operation, along with its standard
+ * deviation over the iterations and the bytes allocated per operation.
+ *
+ * The results are written as JSON, in the shape of the JMH result files (benchmark, mode,
+ * cnt, score, scoreError, scoreUnit), such that the results of two builds can be diffed.
+ * Counters of a benchmark (e.g. the node visits of an analysis) go to the secondary metrics.
+ */
+object Harness {
+
+  case class Result(benchmark: String, iterations: Int, score: Double, error: Double, unit: String, allocated: Double,
+                    counters: List[(String, Long)] = Nil)
+
+  // Keeps the results of the operations alive, such that they are not eliminated
+  @volatile var sink: Any = null
+
+  /**
+   * Runs op opsPerIteration times in each iteration and returns the average time of a run
+   * in unit (one of ns, us, ms), see Result.
+   */
+  def measure(benchmark: String, unit: String, warmup: Int, iterations: Int, opsPerIteration: Int)(op: () => Any): Result = {
+    val threads = java.lang.management.ManagementFactory.getThreadMXBean().asInstanceOf[com.sun.management.ThreadMXBean]
+    val thread = Thread.currentThread().getId()
+    val scale = unit match {
+      case "ns" => 1.0
+      case "us" => 1e3
+      case "ms" => 1e6
+    }
+
+    def iteration(): (Double, Long) = {
+      val bytes = threads.getThreadAllocatedBytes(thread)
+      val start = System.nanoTime()
+      for (i <- 0 until opsPerIteration)
+        sink = op()
+      ((System.nanoTime() - start) / scale / opsPerIteration, threads.getThreadAllocatedBytes(thread) - bytes)
+    }
+
+    (0 until warmup).foreach((_) => iteration())
+    val results = (0 until iterations).map((_) => iteration())
+    val times = results.map(_._1)
+    val mean = times.sum / iterations
+    val deviation = if (iterations < 2) 0.0 else math.sqrt(times.map((time) => (time - mean) * (time - mean)).sum / (iterations - 1))
+    val allocated = results.map(_._2).sum.toDouble / (iterations.toLong * opsPerIteration)
+
+    val result = Result(benchmark, iterations, mean, deviation, unit + "/op", allocated)
+    println("%-56s  avgt  %3d  %12.3f +- %10.3f  %-5s  %14.1f B/op".format(benchmark, iterations, mean, deviation, result.unit, allocated))
+    result
+  }
+
+  /** Adds counters to result, which are the same for every run of its operation. */
+  def count(result: Result, counters: List[(String, Long)]): Result = {
+    println("%-56s  %s".format("", counters.map((counter) => counter._1 + "=" + counter._2).mkString(" ")))
+    result.copy(counters = result.counters ++ counters)
+  }
+
+  def toJson(results: List[Result]): String =
+    results.map {(result) =>
+      "  {\n" +
+      "    \"benchmark\": " + quote(result.benchmark) + ",\n" +
+      "    \"mode\": \"avgt\",\n" +
+      "    \"cnt\": " + result.iterations + ",\n" +
+      "    \"primaryMetric\": {\n" +
+      "      \"score\": " + format(result.score) + ",\n" +
+      "      \"scoreError\": " + format(result.error) + ",\n" +
+      "      \"scoreUnit\": " + quote(result.unit) + "\n" +
+      "    },\n" +
+      "    \"secondaryMetrics\": {\n" +
+      "      \"alloc\": {\"score\": " + format(result.allocated) + ", \"scoreUnit\": \"B/op\"}" +
+      result.counters.map((counter) => ",\n      " + quote(counter._1) + ": {\"score\": " + counter._2 + ", \"scoreUnit\": \"#\"}").mkString + "\n" +
+      "    }\n" +
+      "  }"
+    }.mkString("[\n", ",\n", "\n]\n")
+
+  private def format(value: Double): String = "%.6f".formatLocal(java.util.Locale.ROOT, value)
+
+  private def quote(str: String): String = "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+}
@@ -20,8 +20,15 @@ case class ControlFlowGraph(entryNodes: Set[Node],
    * Accessors
    */
 
+  // Built on the first predecessor lookup; a graph that is spliced during the analysis
+  // is a new ControlFlowGraph, and gets its own index
+  lazy val index: CFGIndex = new CFGIndex(this)
+
+  // The scopes of the graph, built when the analysis first asks for its environment (see Environment)
+  lazy val scopes: CFGScopes = new CFGScopes(this)
+
   def getPredecessors(node: Node): Set[Node] = {
-    nodes.filter ((n) => getSuccessors(n).contains(node))
+    index.predecessors.get(node).filter(nodes.contains)
   }
 
   def getSuccessors(node: Node): Set[Node] = {
@@ -29,7 +36,7 @@ case class ControlFlowGraph(entryNodes: Set[Node],
   }
 
   def getExceptionPredecessors(node: Node): Set[Node] = {
-    nodes.filter ((n) => getExceptionSuccessors(n).contains(node))
+    index.exceptionPredecessors.get(node).filter(nodes.contains)
   }
 
   def getExceptionSuccessors(node: Node): Set[Node] = {
@@ -131,8 +138,10 @@ case class ControlFlowGraph(entryNodes: Set[Node],
       val filteredExitNodes = exitNodes // if (exitNodes.contains(node)) exitNodes - node ++ getPredecessors(node) else exitNodes
       val filteredExceptExitNodes = exceptExitNodes // if (exceptExitNodes.contains(node)) exceptExitNodes - node ++ getExceptionPredecessors(node) else exceptExitNodes
       val filteredNodes = nodes - node
-      val filteredEdges = edges.filterKeys{(n) => node != n}.mapValues{(ns) => ns - node}
-      val filteredExceptionEdges = exceptionEdges.filterKeys{(n) => node != n}.mapValues{(ns) => ns - node}
+      // Only the predecessors of node have edges into it. The maps are kept strict, since chains
+      // of filterKeys/mapValues views make every later lookup linear in the number of removals
+      val filteredEdges = unlink(node, edges, index.predecessors.get(node))
+      val filteredExceptionEdges = unlink(node, exceptionEdges, index.exceptionPredecessors.get(node))
 
       new ControlFlowGraph(filteredEntryNodes, filteredExitNodes, filteredExceptExitNodes, filteredNodes, filteredEdges, filteredExceptionEdges)
         .connect(getPredecessors(node), getSuccessors(node))
@@ -146,6 +155,15 @@ case class ControlFlowGraph(entryNodes: Set[Node],
    * Manipulation - Edges
    */
 
+  // Removes the edges out of node, and the edges from its predecessors into it
+  private def unlink(node: Node, edges: Map[Node, Set[Node]], predecessors: Set[Node]): Map[Node, Set[Node]] =
+    predecessors.foldLeft(edges - node) {(acc, pred) =>
+      acc.get(pred) match {
+        case Some(succs) => acc + (pred -> (succs - node))
+        case None => acc
+      }
+    }
+
   private def addEdges(predecessors: Set[Node], successors: Set[Node], edges: Map[Node, Set[Node]]): Map[Node, Set[Node]] = {
     return predecessors.foldLeft(edges) {(acc, pred) =>
       pred match {
@@ -275,20 +293,18 @@ case class ControlFlowGraph(entryNodes: Set[Node],
     return CFGNormalizer.normalize(this)
   }
   
+  // The files are written in the background, see GraphvizFiles
   def exportToFile(fileName: String, doCollapse : Boolean = true, doMinify: Boolean = true, callGraph: CallGraphLattice.Elt = CallGraphLattice.bottom): ControlFlowGraph = {
-    GraphvizExporter.export(generateGraphvizGraph(doCollapse, callGraph), new PrintStream(fileName + ".cfg.dot"))
-    Runtime.getRuntime().exec("dot -Tpng -o " + fileName + ".cfg.png " + fileName + ".cfg.dot")
+    GraphvizFiles.submit(fileName + ".cfg.dot", generateGraphvizGraph(doCollapse, callGraph))
     
-    if (doMinify) {
-      GraphvizExporter.export(minify().generateGraphvizGraph(doCollapse, callGraph), new PrintStream(fileName + ".cfg.min.dot"))
-      Runtime.getRuntime().exec("dot -Tpng -o " + fileName + ".cfg.min.png " + fileName + ".cfg.min.dot")
-    }
+    if (doMinify)
+      GraphvizFiles.submit(fileName + ".cfg.min.dot", minify().generateGraphvizGraph(doCollapse, callGraph))
   
     return this
   }
   
   def generateGraphvizGraph(collapse: Boolean, callGraph: CallGraphLattice.Elt): GraphvizExporter.Graph = {
-    callGraph.foldLeft(this) {(acc, tuple) =>
+    callGraph.edges.foldLeft(this) {(acc, tuple) =>
       val (_, pred, _, succ, _, normalEdge) = tuple
       if (Set(pred, succ) subsetOf acc.nodes)
         if (normalEdge)
@@ -328,47 +344,7 @@ case class ControlFlowGraph(entryNodes: Set[Node],
         var (from, toList) = pair
         toList.foldLeft(list)((list, to) => GraphvizExporter.Edge(getNodeId(from), getNodeId(to), None, Some(GraphvizExporter.Dashed())) :: list)}
 
-    def collapseNodes(n : GraphvizExporter.Node, m: GraphvizExporter.Node, nodes: List[GraphvizExporter.Node], edges: List[GraphvizExporter.Edge], exceptEdges: List[GraphvizExporter.Edge]) : (List[GraphvizExporter.Node], List[GraphvizExporter.Edge], List[GraphvizExporter.Edge], Boolean) = {
-      val outgoingEdges = GraphvizExporter.getOutgoingEdges(n, edges)
-      if (outgoingEdges.size == 1 && outgoingEdges.head.to == m.id) {
-        val ingoingEdges = GraphvizExporter.getIngoingEdges(m, edges)
-        val ingoingExceptEdges = GraphvizExporter.getIngoingEdges(m, exceptEdges)
-        if (ingoingEdges.size == 1 && ingoingEdges.head.from == n.id && ingoingExceptEdges.size == 0) {
-          val exceptTargetsFromN = GraphvizExporter.getOutgoingEdges(n, exceptEdges).map((e) => e.to)
-          val exceptTargetsFromM = GraphvizExporter.getOutgoingEdges(m, exceptEdges).map((e) => e.to)
-          if (exceptTargetsFromN == exceptTargetsFromM) {
-            val newNodes = (new GraphvizExporter.Node(n.label + GraphvizExporter.escape("\n") + m.label, m.id)) :: nodes.filter((node) => node.id != n.id && node.id != m.id)
-            val newEdges = edges.foldLeft(List() : List[GraphvizExporter.Edge])((acc,edge) => edge match {
-              case GraphvizExporter.Edge(n.id, m.id, _, _) => acc
-              case GraphvizExporter.Edge(e, n.id, _, _) => (new GraphvizExporter.Edge(e, m.id, edge.label, edge.style)) :: acc
-              case _ => edge :: acc
-            })
-            val newExceptEdges = exceptEdges.foldLeft(List() : List[GraphvizExporter.Edge])((acc,edge) => edge match {
-              case GraphvizExporter.Edge(n.id, m.id, _, _) => acc
-              case GraphvizExporter.Edge(_, n.id, _, _) => (new GraphvizExporter.Edge(edge.from, m.id, edge.label, edge.style)) :: acc
-              case GraphvizExporter.Edge(n.id, _, _, _) => acc
-              case _ => edge :: acc
-            })
-            return (newNodes, newEdges, newExceptEdges, true)
-          }
-        }
-      }
-      return (nodes, edges, exceptEdges, false)
-    } 
-
-    def blockify(nodes: List[GraphvizExporter.Node], edges: List[GraphvizExporter.Edge], exceptEdges: List[GraphvizExporter.Edge]) : (List[GraphvizExporter.Node], List[GraphvizExporter.Edge], List[GraphvizExporter.Edge]) = {
-      for (n <- nodes) {
-        for (m <- nodes) {
-          val (blockedNodes, blockedEdges, blockedExceptEdges,collapsed) = collapseNodes(n, m, nodes, edges, exceptEdges)
-          if (collapsed) {
-            return blockify(blockedNodes, blockedEdges, blockedExceptEdges)
-          }
-        }
-      }
-      return (nodes, edges, exceptEdges)
-    }
-
-    val (blockedNodes, blockedEdges, blockedExceptEdges) = if (collapse) blockify(graphNodes, graphEdges, graphExceptEdges) else (graphNodes, graphEdges, graphExceptEdges)
+    val (blockedNodes, blockedEdges, blockedExceptEdges) = if (collapse) GraphvizExporter.blockify(graphNodes, graphEdges, graphExceptEdges) else (graphNodes, graphEdges, graphExceptEdges)
 
     return new GraphvizExporter.Graph {
       def nodes() = blockedNodes
@@ -0,0 +1,451 @@
+package tapy.cfg
+
+import java.io._
+import java.nio.{ByteBuffer, BufferUnderflowException}
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+import org.python.antlr.BaseParser
+import org.python.antlr.ast.{ClassDef, FunctionDef, Module, Name, arguments, cmpopType, expr_contextType, operatorType, unaryopType}
+import org.python.antlr.base.{expr, stmt}
+import org.python.antlr.runtime.{ANTLRFileStream, Token}
+import org.python.core.{PyComplex, PyFloat, PyInteger, PyLong}
+import scala.collection.JavaConversions._
+
+/**
+ * On-disk cache of the normalized CFGs of modules. Each CFG is stored in dir under a
+ * digest of its source, its module name and the class files that build CFGs, such that
+ * both a changed module and a changed analyzer miss the cache.
+ *
+ * A cached CFG is read through a memory-mapped buffer. Its nodes are created anew, such
+ * that they get fresh indices, and its registers are moved to a fresh range of Registers.
+ *
+ * The CFGs are also kept in memory, for processes that analyze many programs (see Daemon).
+ * A CFG is never modified, so the analyses can share it. Without a dir, they are only kept
+ * in memory.
+ */
+class CFGCache(dir: File) {
+  // The key and CFG of the last version of each module, by its file and name
+  private val loaded = new ConcurrentHashMap[(String, String), (String, ControlFlowGraph)]()
+
+  def getCFG(file: File, moduleName: String): ControlFlowGraph = {
+    if (!file.isFile())
+      return CFGCache.build(file, moduleName) // Fails as without the cache
+
+    val key = CFGCache.key(Files.readAllBytes(file.toPath()), moduleName)
+    val module = (file.getCanonicalPath(), moduleName)
+    val entry = loaded.get(module)
+    if (entry != null && entry._1 == key)
+      return entry._2
+
+    val cfg = if (dir == null) CFGCache.build(file, moduleName) else getCFG(file, moduleName, new File(dir, key + ".cfg"))
+    loaded.put(module, (key, cfg))
+    cfg
+  }
+
+  private def getCFG(file: File, moduleName: String, cacheFile: File): ControlFlowGraph = {
+    if (cacheFile.isFile()) {
+      try {
+        return CFGCache.read(cacheFile)
+      } catch {
+        // A truncated or otherwise corrupt entry (see readEntry), which is overwritten below
+        case _: IOException | _: BufferUnderflowException | _: IllegalArgumentException | _: IndexOutOfBoundsException =>
+      }
+    }
+
+    val cfg = CFGCache.build(file, moduleName)
+    CFGCache.write(cfg, cacheFile)
+    cfg
+  }
+}
+
+object CFGCache {
+  private val MAGIC = 0x54434647 // "TCFG"
+  private val FORMAT_VERSION = 1
+
+  // The classes whose code determines the CFG of a module
+  private val builders: List[Class[_]] = List(classOf[CFGGeneratorVisitor], classOf[ControlFlowGraph], classOf[Node],
+    CFGNormalizer.getClass, CFGMagicMethodsNormalization.getClass, CFGCache.getClass)
+
+  private lazy val analyzerVersion: Array[Byte] = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    builders.foreach {(c) =>
+      val in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")
+      if (in != null) {
+        try {
+          val buffer = new Array[Byte](8192)
+          Iterator.continually(in.read(buffer)).takeWhile(_ >= 0).foreach(digest.update(buffer, 0, _))
+        } finally {
+          in.close()
+        }
+      }
+    }
+    digest.update(BigInt(FORMAT_VERSION).toByteArray)
+    digest.digest()
+  }
+
+  def key(source: Array[Byte], moduleName: String): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(analyzerVersion)
+    digest.update(moduleName.getBytes(StandardCharsets.UTF_8))
+    digest.update(0: Byte)
+    digest.update(source)
+    digest.digest().map("%02x".format(_)).mkString
+  }
+
+  /** Parses file and builds its normalized CFG, without going through the cache. */
+  def build(file: File, moduleName: String): ControlFlowGraph = {
+    val parser = new BaseParser(new ANTLRFileStream(file.getPath()), file.getPath(), "ascii")
+    val ast = parser.parseModule()
+    val cfg = ast.accept(new CFGGeneratorVisitor(moduleName)).minify().normalize()
+    if (cfg.exitNodes.size == 1) cfg else cfg.append(NoOpNode("Module Exit"))
+  }
+
+  /*
+   * Writing
+   */
+
+  // Thrown for what cannot be represented, e.g. tuple parameters in a function definition
+  class NotCacheableException(what: Any) extends Exception(what.toString())
+
+  def write(cfg: ControlFlowGraph, file: File): Unit = writeEntry(file) {(writer) => writer.writeCFG(cfg)}
+
+  /**
+    * Writes an entry to file, through a temporary file such that concurrent readers never
+    * see a partial entry. Entries that cannot be represented are not written. The entry is
+    * preceded by its length and checksum (see readEntry).
+    */
+  def writeEntry(file: File)(write: Writer => Unit): Unit = {
+    val bytes = new ByteArrayOutputStream()
+    try {
+      val out = new DataOutputStream(bytes)
+      out.writeInt(0)
+      out.writeInt(0)
+      write(new Writer(out))
+      out.flush()
+    } catch {
+      case _: NotCacheableException => return
+    }
+
+    val entry = ByteBuffer.wrap(bytes.toByteArray())
+    entry.putInt(0, entry.capacity() - ENTRY_HEADER)
+    entry.putInt(4, checksum(entry.duplicate().position(ENTRY_HEADER).asInstanceOf[ByteBuffer]))
+
+    try {
+      file.getParentFile().mkdirs()
+      val tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile())
+      Files.write(tmp.toPath(), entry.array())
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } catch {
+      // The cache is an optimization only
+      case e: IOException => scala.Console.err.println("Could not write " + file + ": " + e.getMessage())
+    }
+  }
+
+  /**
+    * Writes a CFG, after which other data that refers to its nodes and registers can be
+    * written. extraNodes and extraRegisters are the nodes and registers of that data that
+    * are not part of the CFG.
+    */
+  class Writer(val out: DataOutputStream) {
+    private val refs = new IdentityHashMap[Node, Integer]()
+
+    def writeCFG(cfg: ControlFlowGraph, extraNodes: Set[Node] = Set(), extraRegisters: Set[Int] = Set()): Unit = {
+      val edgeNodes = (cfg.edges ++ cfg.exceptionEdges).foldLeft(Set[Node]()) {(acc, entry) => acc + entry._1 ++ entry._2}
+      val nodes = withReferences(cfg.nodes ++ cfg.entryNodes ++ cfg.exitNodes ++ cfg.exceptExitNodes ++ edgeNodes ++ extraNodes).toList
+      val registers = (nodes.flatMap((node) => RegisterLiveness.uses(node) ++ RegisterLiveness.defs(node)) ++ extraRegisters).filter(_ >= 0)
+
+      out.writeInt(MAGIC)
+      out.writeInt(FORMAT_VERSION)
+      out.writeInt(if (registers.isEmpty) 0 else registers.min)
+      out.writeInt(if (registers.isEmpty) 0 else registers.max)
+
+      // A node can only reference nodes that were created before it, hence it is written after them.
+      // This also creates the nodes in their original order when they are read.
+      val ordered = nodes.sortBy(_.index)
+      out.writeInt(ordered.size)
+      ordered.foreach(writeNode)
+
+      writeNodes(cfg.entryNodes)
+      writeNodes(cfg.exitNodes)
+      writeNodes(cfg.exceptExitNodes)
+      writeNodes(cfg.nodes)
+      writeEdges(cfg.edges)
+      writeEdges(cfg.exceptionEdges)
+    }
+
+    // The entry and exit nodes referenced by declarations and exits need not be part of the CFG
+    private def withReferences(nodes: Set[Node]): Set[Node] = {
+      val references = nodes.flatMap {(node) => node match {
+        case FunctionDeclNode(entry, exit, exceptionalExit, _, _) => Set[Node](entry, exit, exceptionalExit)
+        case ClassDeclNode(entry, exit, _, _) => Set[Node](entry, exit)
+        case ExceptionalExitNode(_, entryNode, _) => Set(entryNode)
+        case ClassExitNode(_, entryNode, _) => Set[Node](entryNode)
+        case FunctionExitNode(_, entryNode, _) => Set[Node](entryNode)
+        case _ => Set[Node]()
+      }}
+      if (references.subsetOf(nodes)) nodes else withReferences(nodes ++ references)
+    }
+
+    private def writeNode(node: Node): Unit = {
+      refs.put(node, refs.size())
+      node match {
+        case FunctionDeclNode(entry, exit, exceptionalExit, defaultArgRegs, _) => tag(0); ref(entry); ref(exit); ref(exceptionalExit); regs(defaultArgRegs)
+        case ClassDeclNode(entry, exit, bases, _) => tag(1); ref(entry); ref(exit); strings(bases)
+        case ExceptionalExitNode(name, entryNode, _) => tag(2); string(name); ref(entryNode)
+        case ClassEntryNode(note, bases, classDef, _) => tag(3); string(note); strings(bases); string(classDef.getInternalName())
+        case FunctionEntryNode(name, funcDef, _) => tag(4); string(name)
+          if (funcDef == null) out.writeBoolean(false) else {
+            out.writeBoolean(true)
+            strings(funcDef.getInternalArgs().getInternalArgs().toList.map(_ match {
+              case arg: Name => arg.getInternalId()
+              case _ => throw new NotCacheableException(node)
+            }))
+          }
+        case ClassExitNode(note, entryNode, _) => tag(5); string(note); ref(entryNode)
+        case FunctionExitNode(note, entryNode, _) => tag(6); string(note); ref(entryNode)
+        case ModuleEntryNode(name, moduleDef, _) => tag(7); string(name); out.writeBoolean(moduleDef != null)
+        case WriteVariableNode(variable, valueReg, _) => tag(8); string(variable); reg(valueReg)
+        case WriteRegisterNode(resultReg, valueReg, _) => tag(9); reg(resultReg); reg(valueReg)
+        case WritePropertyNode(baseReg, property, valueReg, _) => tag(10); reg(baseReg); string(property); reg(valueReg)
+        case WriteIndexableNode(baseReg, propertyReg, valueReg, _) => tag(11); reg(baseReg); reg(propertyReg); reg(valueReg)
+        case ConstantBooleanNode(resultReg, bool, _) => tag(12); reg(resultReg); out.writeBoolean(bool)
+        case ConstantIntNode(resultReg, int, _) => tag(13); reg(resultReg); out.writeInt(int.getValue())
+        case ConstantFloatNode(resultReg, float, _) => tag(14); reg(resultReg); out.writeDouble(float.getValue())
+        case ConstantLongNode(resultReg, long, _) => tag(15); reg(resultReg); string(long.getValue().toString())
+        case ConstantComplexNode(resultReg, complex, _) => tag(16); reg(resultReg); out.writeDouble(complex.real); out.writeDouble(complex.imag)
+        case ConstantStringNode(resultReg, string, _) => tag(17); reg(resultReg); this.string(string)
+        case ConstantNoneNode(resultReg, _) => tag(18); reg(resultReg)
+        case ReadVariableNode(variable, resultReg, builtin, _) => tag(19); string(variable); reg(resultReg); out.writeBoolean(builtin)
+        case ReadPropertyNode(baseReg, property, resultReg, transform, _) => tag(20); reg(baseReg); string(property); reg(resultReg); out.writeBoolean(transform)
+        case ReadIndexableNode(baseReg, propertyReg, resultReg, _) => tag(21); reg(baseReg); reg(propertyReg); reg(resultReg)
+        case HasAttributeNode(baseReg, property, resultReg, _) => tag(22); reg(baseReg); string(property); reg(resultReg)
+        case DelVariableNode(variable, _) => tag(23); string(variable)
+        case DelIndexableNode(baseReg, propertyReg, _) => tag(24); reg(baseReg); reg(propertyReg)
+        case DelPropertyNode(baseReg, property, _) => tag(25); reg(baseReg); string(property)
+        case NoOpNode(note, _) => tag(26); string(note)
+        case BreakNode(note, _) => tag(27); string(note)
+        case IfNode(conditionReg, _) => tag(28); reg(conditionReg)
+        case ReturnNode(resultReg, _) => tag(29); reg(resultReg)
+        case CallNode(functionReg, argRegs, keywordRegs, starArgReg, kwArgReg, _) => tag(30); reg(functionReg); regs(argRegs)
+          strings(keywordRegs.keys.toList); regs(keywordRegs.values.toList); optionalReg(starArgReg); optionalReg(kwArgReg)
+        case AfterCallNode(resultReg, _) => tag(31); reg(resultReg)
+        case RaiseNode(valueReg, _) => tag(32); optionalReg(valueReg)
+        case ExceptNode(types, names, _) => tag(33); strings(types); strings(names)
+        case CompareOpNode(op, arg1Reg, arg2Reg, resultReg, _) => tag(34); out.writeInt(op.ordinal()); reg(arg1Reg); reg(arg2Reg); reg(resultReg)
+        case BinOpNode(op, arg1Reg, arg2Reg, resultReg, _) => tag(35); out.writeInt(op.ordinal()); reg(arg1Reg); reg(arg2Reg); reg(resultReg)
+        case UnOpNode(op, arg1Reg, resultReg, _) => tag(36); out.writeInt(op.ordinal()); reg(arg1Reg); reg(resultReg)
+        case PrintNode(dest, valueRegs, _) => tag(37); optionalReg(dest); regs(valueRegs)
+        case GlobalNode(variable, _) => tag(38); string(variable)
+        case AssertIterable(reg, length, _) => tag(39); this.reg(reg); out.writeInt(length)
+        case ImportNode(names, isImplicit, _) => tag(40); strings(names); out.writeBoolean(isImplicit)
+        case AssertNode(reg, negate, _) => tag(41); this.reg(reg); out.writeBoolean(negate)
+        case _ => throw new NotCacheableException(node)
+      }
+    }
+
+    private def writeNodes(nodes: Set[Node]): Unit = {
+      out.writeInt(nodes.size)
+      nodes.foreach(ref)
+    }
+
+    private def writeEdges(edges: Map[Node, Set[Node]]): Unit = {
+      out.writeInt(edges.size)
+      edges.foreach {(entry) =>
+        ref(entry._1)
+        writeNodes(entry._2)
+      }
+    }
+
+    private def tag(tag: Int): Unit = out.writeByte(tag)
+    def index(node: Node): Int = refs.get(node)
+    def ref(node: Node): Unit = {
+      val ref = refs.get(node)
+      if (ref == null)
+        throw new InternalError()
+      out.writeInt(ref)
+    }
+    def reg(reg: Int): Unit = out.writeInt(reg)
+    def regs(regs: List[Int]): Unit = { out.writeInt(regs.size); regs.foreach(reg) }
+    private def optionalReg(reg: Option[Int]): Unit = regs(reg.toList)
+
+    def string(string: String): Unit =
+      if (string == null)
+        out.writeInt(-1)
+      else {
+        val bytes = string.getBytes(StandardCharsets.UTF_8)
+        out.writeInt(bytes.length)
+        out.write(bytes)
+      }
+
+    def strings(strings: List[String]): Unit = { out.writeInt(strings.size); strings.foreach(string) }
+  }
+
+  /*
+   * Copying
+   */
+
+  /**
+    * A copy of cfg with fresh nodes and registers, along with the copy of each of its nodes.
+    * Throws NotCacheableException for what a Writer cannot represent.
+    */
+  def copy(cfg: ControlFlowGraph): (ControlFlowGraph, Map[Node, Node]) = {
+    val bytes = new ByteArrayOutputStream()
+    val writer = new Writer(new DataOutputStream(bytes))
+    writer.writeCFG(cfg)
+    writer.out.flush()
+
+    val reader = new Reader(ByteBuffer.wrap(bytes.toByteArray()))
+    val copy = reader.readCFG()
+    (copy, cfg.nodes.foldLeft(Map[Node, Node]()) {(acc, node) => acc + (node -> reader.node(writer.index(node)))})
+  }
+
+  /*
+   * Reading
+   */
+
+  def read(file: File): ControlFlowGraph = readEntry(file) {(reader) => reader.readCFG()}
+
+  /**
+    * Reads an entry written by writeEntry. An entry whose length or checksum does not match,
+    * e.g. one that was truncated or damaged on disk, is rejected with an IOException before
+    * it is decoded, since decoding it could fail in any way (or not at all).
+    */
+  def readEntry[T](file: File)(read: Reader => T): T = {
+    val channel = new RandomAccessFile(file, "r").getChannel()
+    try {
+      val entry = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+      if (entry.capacity() < ENTRY_HEADER || entry.getInt() != entry.capacity() - ENTRY_HEADER || entry.getInt() != checksum(entry.duplicate()))
+        throw new IOException("Corrupt cache entry: " + file)
+      read(new Reader(entry.slice()))
+    } finally {
+      channel.close()
+    }
+  }
+
+  // The length and checksum that precede an entry
+  private val ENTRY_HEADER = 8
+
+  private def checksum(data: ByteBuffer): Int = {
+    val crc = new CRC32()
+    crc.update(data)
+    crc.getValue().toInt
+  }
+
+  /**
+    * Reads a CFG written by a Writer, after which the data that follows it can be read.
+    */
+  class Reader(val in: ByteBuffer) {
+    private var nodes: Array[Node] = null
+    private var registerOffset = 0
+
+    def readCFG(): ControlFlowGraph = {
+      if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+        throw new IOException("Not a cached CFG")
+
+      val minRegister = in.getInt()
+      val maxRegister = in.getInt()
+      registerOffset = Registers.reserve(maxRegister - minRegister + 1) - minRegister
+
+      nodes = new Array[Node](in.getInt())
+      for (i <- 0 until nodes.length)
+        nodes(i) = readNode()
+
+      val entryNodes = readNodes()
+      val exitNodes = readNodes()
+      val exceptExitNodes = readNodes()
+      val cfgNodes = readNodes()
+      new ControlFlowGraph(entryNodes, exitNodes, exceptExitNodes, cfgNodes, readEdges(), readEdges())
+    }
+
+    private def readNode(): Node = in.get() match {
+      case 0 => FunctionDeclNode(ref().asInstanceOf[FunctionEntryNode], ref().asInstanceOf[FunctionExitNode], ref().asInstanceOf[ExceptionalExitNode], regs())
+      case 1 => ClassDeclNode(ref().asInstanceOf[ClassEntryNode], ref().asInstanceOf[ClassExitNode], strings())
+      case 2 => ExceptionalExitNode(string(), ref())
+      case 3 => ClassEntryNode(string(), strings(), classDef(string()))
+      case 4 =>
+        val name = string()
+        FunctionEntryNode(name, if (bool()) functionDef(name, strings()) else null)
+      case 5 => ClassExitNode(string(), ref().asInstanceOf[ClassEntryNode])
+      case 6 => FunctionExitNode(string(), ref().asInstanceOf[FunctionEntryNode])
+      case 7 => ModuleEntryNode(string(), if (bool()) new Module(null: Token, new java.util.ArrayList[stmt]()) else null)
+      case 8 => WriteVariableNode(string(), reg())
+      case 9 => WriteRegisterNode(reg(), reg())
+      case 10 => WritePropertyNode(reg(), string(), reg())
+      case 11 => WriteIndexableNode(reg(), reg(), reg())
+      case 12 => ConstantBooleanNode(reg(), bool())
+      case 13 => ConstantIntNode(reg(), new PyInteger(in.getInt()))
+      case 14 => ConstantFloatNode(reg(), new PyFloat(in.getDouble()))
+      case 15 => ConstantLongNode(reg(), new PyLong(new java.math.BigInteger(string())))
+      case 16 => ConstantComplexNode(reg(), new PyComplex(in.getDouble(), in.getDouble()))
+      case 17 => ConstantStringNode(reg(), string())
+      case 18 => ConstantNoneNode(reg())
+      case 19 => ReadVariableNode(string(), reg(), bool())
+      case 20 => ReadPropertyNode(reg(), string(), reg(), bool())
+      case 21 => ReadIndexableNode(reg(), reg(), reg())
+      case 22 => HasAttributeNode(reg(), string(), reg())
+      case 23 => DelVariableNode(string())
+      case 24 => DelIndexableNode(reg(), reg())
+      case 25 => DelPropertyNode(reg(), string())
+      case 26 => NoOpNode(string())
+      case 27 => BreakNode(string())
+      case 28 => IfNode(reg())
+      case 29 => ReturnNode(reg())
+      case 30 => CallNode(reg(), regs(), strings().zip(regs()).toMap, regs().headOption, regs().headOption)
+      case 31 => AfterCallNode(reg())
+      case 32 => RaiseNode(regs().headOption)
+      case 33 => ExceptNode(strings(), strings())
+      case 34 => CompareOpNode(cmpopType.values()(in.getInt()), reg(), reg(), reg())
+      case 35 => BinOpNode(operatorType.values()(in.getInt()), reg(), reg(), reg())
+      case 36 => UnOpNode(unaryopType.values()(in.getInt()), reg(), reg())
+      case 37 => PrintNode(regs().headOption, regs())
+      case 38 => GlobalNode(string())
+      case 39 => AssertIterable(reg(), in.getInt())
+      case 40 => ImportNode(strings(), bool())
+      case 41 => AssertNode(reg(), bool())
+      case tag => throw new IOException("Unknown node tag " + tag)
+    }
+
+    // The analysis only needs the name of a class definition, and the parameter names of a function definition
+    private def classDef(name: String): ClassDef =
+      new ClassDef(null: Token, name, new java.util.ArrayList[expr](), new java.util.ArrayList[stmt](), new java.util.ArrayList[expr]())
+
+    private def functionDef(name: String, args: List[String]): FunctionDef = {
+      val names: java.util.List[expr] = new java.util.ArrayList[expr](args.map((arg) => new Name(null: Token, arg, expr_contextType.Param)))
+      val arguments = new arguments(null: Token, names, null: Name, null: Name, new java.util.ArrayList[expr]())
+      new FunctionDef(null: Token, name, arguments, new java.util.ArrayList[stmt](), new java.util.ArrayList[expr]())
+    }
+
+    private def readNodes(): Set[Node] =
+      (0 until in.getInt()).foldLeft(Set[Node]()) {(acc, _) => acc + ref()}
+
+    private def readEdges(): Map[Node, Set[Node]] =
+      (0 until in.getInt()).foldLeft(Map[Node, Set[Node]]()) {(acc, _) =>
+        val from = ref()
+        acc + (from -> readNodes())
+      }
+
+    def ref(): Node = nodes(in.getInt())
+    def node(index: Int): Node = nodes(index)
+    def bool(): Boolean = in.get() != 0
+    def reg(): Int = {
+      val reg = in.getInt()
+      if (reg < 0) reg else reg + registerOffset
+    }
+    def regs(): List[Int] = List.fill(in.getInt())(reg())
+
+    def string(): String = in.getInt() match {
+      case -1 => null
+      case length =>
+        val bytes = new Array[Byte](length)
+        in.get(bytes)
+        new String(bytes, StandardCharsets.UTF_8)
+    }
+
+    def strings(): List[String] = List.fill(in.getInt())(string())
+  }
+}
@@ -14,15 +14,32 @@ import tapy.exceptions._
 import java.io._
 
 object Registers {
-  // Registers
+  // Registers are numbered per thread, such that files can be translated in parallel
+  // (see Main.analyzeDirectory). Within an analysis, modules are imported on the same thread.
   
-  var index :Int  = 0
+  private class Counter {
+    var index: Int = 0
+    var last: Int = 0
+  }
+
+  private val counter = new ThreadLocal[Counter] { override def initialValue(): Counter = new Counter() }
+
+  def index: Int = counter.get().index
   def next() : Int = {
-    index += 1
-    index
+    val c = counter.get()
+    c.index += 1
+    c.index
+  }
+
+  // Reserves count consecutive registers, and returns the first of them
+  def reserve(count: Int): Int = {
+    val c = counter.get()
+    c.index += count
+    c.index - count + 1
   }
 
-  var last : Int = 0
+  def last: Int = counter.get().last
+  def last_=(reg: Int): Unit = counter.get().last = reg
 }
 
 class CFGGeneratorVisitor(moduleName: String) extends VisitorBase[ControlFlowGraph] {
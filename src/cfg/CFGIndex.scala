@@ -0,0 +1,77 @@
+package tapy.cfg
+
+/**
+ * Adjacency lists in compressed sparse row form: the neighbours of the node in slot s are
+ * targets(offsets(s)) until targets(offsets(s + 1)), where slots assigns the nodes of the
+ * graph consecutive slots.
+ */
+class Adjacency(slots: NodeTable[Integer], offsets: Array[Int], targets: Array[Node]) {
+
+  def degree(node: Node): Int = {
+    val slot = slots(node)
+    if (slot == null) 0 else offsets(slot + 1) - offsets(slot)
+  }
+
+  def get(node: Node): Set[Node] = {
+    val slot = slots(node)
+    if (slot == null)
+      Set()
+    else
+      (offsets(slot) until offsets(slot + 1)).foldLeft(Set[Node]()) {(acc, i) => acc + targets(i)}
+  }
+}
+
+object Adjacency {
+
+  /** Packs the given edges, whose nodes all have one of the size slots. */
+  def apply(slots: NodeTable[Integer], size: Int, edges: Iterable[(Node, Node)]): Adjacency = {
+    val offsets = new Array[Int](size + 1)
+    edges.foreach {(edge) => offsets(slots(edge._1) + 1) += 1}
+    for (slot <- 1 to size)
+      offsets(slot) += offsets(slot - 1)
+
+    val targets = new Array[Node](offsets(size))
+    val next = java.util.Arrays.copyOf(offsets, size)
+    edges.foreach {(edge) =>
+      val slot: Int = slots(edge._1)
+      targets(next(slot)) = edge._2
+      next(slot) += 1
+    }
+    new Adjacency(slots, offsets, targets)
+  }
+}
+
+/**
+ * Array-backed, frozen view of the edges of a ControlFlowGraph, such that both
+ * successor and predecessor lookups are O(degree). The nodes are given slots in the order
+ * of their indices when the view is built, such that the arrays are proportional to the
+ * number of nodes of the graph rather than to the span of their (global) indices.
+ */
+class CFGIndex(cfg: ControlFlowGraph) {
+  private val normalEdges = flatten(cfg.edges)
+  private val exceptEdges = flatten(cfg.exceptionEdges)
+
+  private val slots = new NodeTable[Integer]()
+  (cfg.nodes.iterator ++ (normalEdges.iterator ++ exceptEdges.iterator).flatMap {(edge) => Iterator(edge._1, edge._2)}).foreach {(node) =>
+    slots(node) = 0
+  }
+  private val size = {
+    var slot = 0
+    slots.foreach {(node, _) =>
+      slots(node) = slot
+      slot += 1
+    }
+    slot
+  }
+
+  val successors = Adjacency(slots, size, normalEdges)
+  val predecessors = Adjacency(slots, size, normalEdges.map(_.swap))
+  val exceptionSuccessors = Adjacency(slots, size, exceptEdges)
+  val exceptionPredecessors = Adjacency(slots, size, exceptEdges.map(_.swap))
+
+  private def flatten(edges: Map[Node, Set[Node]]): List[(Node, Node)] =
+    edges.foldLeft(List[(Node, Node)]()) {(acc, entry) =>
+      val (pred, succs) = entry
+      succs.foldLeft(acc) {(acc, succ) => (pred, succ) :: acc}
+    }
+}
@@ -8,8 +8,26 @@ import org.python.antlr.ast.operatorType
 import org.python.antlr.ast.unaryopType
 import tapy.lattices._
 
+object Node {
+  private val counter = new java.util.concurrent.atomic.AtomicInteger()
+  def nextIndex(): Int = counter.getAndIncrement()
+}
+
 abstract class Node(id: UUID) {
   protected def reg(r: Int) = s"<$r>"
+
+  /**
+   * Compact id, assigned in creation order, used to index per-node arrays (see CFGIndex).
+   * Since every node carries a fresh UUID, two nodes are only equal if they are the same
+   * node, hence equality and hashing can rely on the index alone.
+   */
+  val index: Int = Node.nextIndex()
+
+  override def hashCode(): Int = index
+  override def equals(other: Any): Boolean = other match {
+    case other: Node => this eq other
+    case _ => false
+  }
   
   def getState(el: AnalysisLattice.Elt): StateLattice.Elt = AnalysisLattice.getState(this, el)
   def setState(el: AnalysisLattice.Elt, state: StateLattice.Elt = StateLattice.bottom): AnalysisLattice.Elt = AnalysisLattice.setState(el, this, state)
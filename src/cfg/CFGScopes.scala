@@ -0,0 +1,142 @@
+package tapy.cfg
+
+import org.python.antlr.ast.Name
+import scala.collection.JavaConversions._
+
+/**
+ * The static resolution of a variable read or write: lookups tells, for the scopes of the
+ * site from the innermost out, whether the variable object of the scope can hold the
+ * variable. The scopes beyond the known ones, e.g. those around a copied function, can.
+ * global is true if the innermost scope declares the variable global.
+ */
+case class ScopeResolution(lookups: List[Boolean], global: Boolean)
+
+/**
+ * The scopes of a ControlFlowGraph: the body of each function, class and module entry node,
+ * along with the variables declared and the properties written in them.
+ *
+ * The body of an entry node is what it reaches through normal and exception edges, where a
+ * nested class is skipped from its entry to its exit, and where module entries, class exits
+ * and function exits are not part of the body. The bodies are found by an iterative search
+ * from each entry node, such that long straight-line modules do not overflow the stack.
+ *
+ * The variable object of a function scope only gets the variables declared in its body, its
+ * parameters and its globals, whereas class and module objects can get any property, e.g. by
+ * an assignment to an attribute or by import *. This resolves most variable reads to the
+ * scopes that can define them (see ScopeResolution).
+ */
+class CFGScopes(cfg: ControlFlowGraph) {
+
+  private val entryNodes: List[Node] = cfg.nodes.toList.filter {
+    case _: FunctionEntryNode | _: ModuleEntryNode | _: ClassEntryNode => true
+    case _ => false
+  }
+
+  private val classExitNodes: Map[Node, Node] = cfg.nodes.foldLeft(Map[Node, Node]()) {(acc, node) =>
+    node match {
+      case node: ClassExitNode => acc + (node.entryNode -> node)
+      case _ => acc
+    }
+  }
+
+  /** The nodes of the body of each entry node, including the entry node itself. */
+  val bodies: Map[Node, Set[Node]] = entryNodes.foldLeft(Map[Node, Set[Node]]()) {(acc, entry) => acc + (entry -> getBody(entry))}
+
+  /** The names of the variables, functions and classes declared in the body of each entry node. */
+  val variables: Map[Node, Set[String]] = bodies.foldLeft(Map[Node, Set[String]]()) {(acc, entry) =>
+    acc + (entry._1 -> entry._2.foldLeft(Set[String]()) {(acc, node) =>
+      node match {
+        case WriteVariableNode(variable, _, _) => acc + variable
+        case FunctionDeclNode(entry, _, _, _, _) => acc + entry.name
+        case ClassDeclNode(entry, _, _, _) => acc + entry.classDef.getInternalName()
+        case _ => acc
+      }
+    })
+  }
+
+  /** The properties written in the bodies. */
+  val properties: Set[String] = bodies.values.foldLeft(Set[String]()) {(acc, body) =>
+    body.foldLeft(acc) {(acc, node) =>
+      node match {
+        case WritePropertyNode(_, property, _, _) => acc + property
+        case _ => acc
+      }
+    }
+  }
+
+  /** The static resolution of each variable read and write that belongs to a single scope. */
+  val resolutions: Map[Node, ScopeResolution] = {
+    // The entry node of the scope in which each function and class is declared
+    val parents = bodies.foldLeft(Map[Node, Node]()) {(acc, entry) =>
+      entry._2.foldLeft(acc) {(acc, node) =>
+        node match {
+          case FunctionDeclNode(declared, _, _, _, _) => acc + (declared -> entry._1)
+          case ClassDeclNode(declared, _, _, _) => acc + (declared -> entry._1)
+          case _ => acc
+        }
+      }
+    }
+
+    val globals = bodies.map {(entry) => (entry._1, entry._2.collect({case GlobalNode(variable, _) => variable}))}
+
+    // The names that can be bound on the variable object of each scope, None if any name can
+    val names: Map[Node, Option[Set[String]]] = bodies.map {(entry) =>
+      val names = entry._1 match {
+        case node: FunctionEntryNode => getParameters(node).map(_ ++ variables(node) ++ globals(node))
+        case _ => None
+      }
+      (entry._1, names)
+    }
+
+    def getScopes(entry: Node): List[Node] = entry :: parents.get(entry).map(getScopes).getOrElse(Nil)
+
+    val owners = bodies.toList.flatMap {(entry) =>
+      entry._2.toList.collect {
+        case node: ReadVariableNode => (node: Node, node.variable, entry._1)
+        case node: WriteVariableNode => (node: Node, node.variable, entry._1)
+      }
+    }
+
+    owners.groupBy(_._1).foldLeft(Map[Node, ScopeResolution]()) {(acc, entry) =>
+      entry._2 match {
+        case List((node, variable, owner)) =>
+          val lookups = getScopes(owner).map((scope) => names(scope).forall(_.contains(variable)))
+          acc + (node -> ScopeResolution(lookups, globals(owner).contains(variable)))
+        case _ => acc
+      }
+    }
+  }
+
+  // The names of the parameters of a function, see Calls.handleFunctionArguments. None if not only names
+  private def getParameters(entry: FunctionEntryNode): Option[Set[String]] =
+    if (entry.funcDef == null)
+      Some(if (entry.name == "__init__") Set("self") else Set())
+    else {
+      val args = entry.funcDef.getInternalArgs().getInternalArgs().toList
+      if (args.forall(_.isInstanceOf[Name])) Some(args.map(_.asInstanceOf[Name].getInternalId()).toSet) else None
+    }
+
+  private def getBody(entry: Node): Set[Node] = {
+    val body = scala.collection.mutable.HashSet[Node](entry)
+    var pending = List(entry)
+
+    while (!pending.isEmpty) {
+      val node = pending.head
+      pending = pending.tail
+
+      (cfg.getSuccessors(node) ++ cfg.getExceptionSuccessors(node)).foreach {(succ) =>
+        val next = succ match {
+          // A new module begins, or the class or function ends
+          case _: ModuleEntryNode | _: ClassExitNode | _: FunctionExitNode => None
+
+          // Continue after a nested class, whose body is a scope of its own
+          case _: ClassEntryNode => Some(classExitNodes.getOrElse(succ, throw new InternalError()))
+
+          case _ => Some(succ)
+        }
+        next.foreach {(next) => if (body.add(next)) pending = next :: pending}
+      }
+    }
+    body.toSet
+  }
+}
@@ -0,0 +1,68 @@
+package tapy.cfg
+
+/**
+ * A mutable map from nodes to values, indexed by Node.index. Node indices are global, so
+ * the indices of the nodes of one program are spread out; the table is split into pages of
+ * consecutive indices that are only allocated once a node of theirs is stored. A lookup is
+ * two array accesses, and the memory is proportional to the number of stored nodes, plus a
+ * directory of one reference per page up to the largest index.
+ */
+class NodeTable[T >: Null <: AnyRef] {
+  private var nodes = new Array[Array[Node]](0)
+  private var values = new Array[Array[AnyRef]](0)
+  private var count = 0
+
+  def size: Int = count
+
+  def contains(node: Node): Boolean = {
+    val page = node.index >>> NodeTable.PAGE_BITS
+    page < nodes.length && nodes(page) != null && nodes(page)(node.index & NodeTable.PAGE_MASK) != null
+  }
+
+  /** The value of node, or null if it has none. */
+  def apply(node: Node): T = {
+    val page = node.index >>> NodeTable.PAGE_BITS
+    if (page < values.length && values(page) != null) values(page)(node.index & NodeTable.PAGE_MASK).asInstanceOf[T]
+    else null
+  }
+
+  def update(node: Node, value: T): Unit = {
+    val page = node.index >>> NodeTable.PAGE_BITS
+    if (page >= nodes.length) {
+      val length = math.max(page + 1, nodes.length * 2)
+      nodes = java.util.Arrays.copyOf(nodes, length)
+      values = java.util.Arrays.copyOf(values, length)
+    }
+    if (nodes(page) == null) {
+      nodes(page) = new Array[Node](NodeTable.PAGE_SIZE)
+      values(page) = new Array[AnyRef](NodeTable.PAGE_SIZE)
+    }
+    val slot = node.index & NodeTable.PAGE_MASK
+    if (nodes(page)(slot) == null)
+      count += 1
+    nodes(page)(slot) = node
+    values(page)(slot) = value
+  }
+
+  /** Visits the stored nodes in the order of their indices. */
+  def foreach(f: (Node, T) => Unit): Unit = {
+    var page = 0
+    while (page < nodes.length) {
+      if (nodes(page) != null) {
+        var slot = 0
+        while (slot < NodeTable.PAGE_SIZE) {
+          if (nodes(page)(slot) != null)
+            f(nodes(page)(slot), values(page)(slot).asInstanceOf[T])
+          slot += 1
+        }
+      }
+      page += 1
+    }
+  }
+}
+
+object NodeTable {
+  private final val PAGE_BITS = 8
+  private final val PAGE_SIZE = 1 << PAGE_BITS
+  private final val PAGE_MASK = PAGE_SIZE - 1
+}
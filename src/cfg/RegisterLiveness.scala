@@ -0,0 +1,102 @@
+package tapy.cfg
+
+import tapy.constants.StackConstants
+
+/**
+ * Registers that may still be read after each node of a ControlFlowGraph (a backwards
+ * may-analysis along normal and exception edges). Function bodies are not connected to
+ * their call sites in the CFG, hence the liveness of registers is computed per function.
+ *
+ * Some registers are read by nodes of other functions, so they are live everywhere:
+ * the StackConstants registers, the default arguments of functions (read by the call
+ * nodes), and the registers read by exception handlers of calls (whose state comes from
+ * the exceptional exit of the callee).
+ */
+class RegisterLiveness(cfg: ControlFlowGraph) {
+
+  private val (liveIn, liveOut) = solve()
+
+  val globallyLive: Set[Int] = cfg.nodes.foldLeft(Set[Int]()) {(acc, node) =>
+    node match {
+      case node: FunctionDeclNode => acc ++ node.defaultArgRegs
+      case node: CallNode => cfg.getExceptionSuccessors(node).foldLeft(acc) {(acc, handler) => acc ++ liveIn.getOrElse(handler, Set())}
+      case _ => acc
+    }
+  }
+
+  def isLive(node: Node, reg: Int): Boolean =
+    reg < 0 || globallyLive.contains(reg) || liveOut.getOrElse(node, Set()).contains(reg)
+
+  private def solve(): (Map[Node, Set[Int]], Map[Node, Set[Int]]) = {
+    var liveIn = Map[Node, Set[Int]]()
+    var liveOut = Map[Node, Set[Int]]()
+    var pending = cfg.nodes
+
+    while (!pending.isEmpty) {
+      val node = pending.head
+      pending = pending.tail
+
+      val normalOut = cfg.getSuccessors(node).foldLeft(Set[Int]()) {(acc, succ) => acc ++ liveIn.getOrElse(succ, Set())}
+      val exceptionOut = cfg.getExceptionSuccessors(node).foldLeft(Set[Int]()) {(acc, succ) => acc ++ liveIn.getOrElse(succ, Set())}
+
+      // The node may throw before it writes its result
+      val in = RegisterLiveness.uses(node) ++ (normalOut -- RegisterLiveness.defs(node)) ++ exceptionOut
+
+      liveOut = liveOut + (node -> (normalOut ++ exceptionOut))
+      if (in != liveIn.getOrElse(node, Set())) {
+        liveIn = liveIn + (node -> in)
+        pending = pending ++ cfg.getPredecessors(node) ++ cfg.getExceptionPredecessors(node)
+      }
+    }
+
+    (liveIn, liveOut)
+  }
+}
+
+object RegisterLiveness {
+
+  def uses(node: Node): Set[Int] = node match {
+    case WriteVariableNode(_, valueReg, _) => Set(valueReg)
+    case WriteRegisterNode(_, valueReg, _) => Set(valueReg)
+    case WritePropertyNode(baseReg, _, valueReg, _) => Set(baseReg, valueReg)
+    case WriteIndexableNode(baseReg, propertyReg, valueReg, _) => Set(baseReg, propertyReg, valueReg)
+    case ReadPropertyNode(baseReg, _, _, _, _) => Set(baseReg)
+    case ReadIndexableNode(baseReg, propertyReg, _, _) => Set(baseReg, propertyReg)
+    case HasAttributeNode(baseReg, _, _, _) => Set(baseReg)
+    case DelIndexableNode(baseReg, propertyReg, _) => Set(baseReg, propertyReg)
+    case DelPropertyNode(baseReg, _, _) => Set(baseReg)
+    case IfNode(conditionReg, _) => Set(conditionReg)
+    case ReturnNode(resultReg, _) => Set(resultReg)
+    case CallNode(functionReg, argRegs, keywordRegs, starArgReg, kwArgReg, _) =>
+      Set(functionReg) ++ argRegs ++ keywordRegs.values ++ starArgReg ++ kwArgReg
+    case RaiseNode(valueReg, _) => valueReg.toSet
+    case CompareOpNode(_, arg1Reg, arg2Reg, _, _) => Set(arg1Reg, arg2Reg)
+    case BinOpNode(_, arg1Reg, arg2Reg, _, _) => Set(arg1Reg, arg2Reg)
+    case UnOpNode(_, arg1Reg, _, _) => Set(arg1Reg)
+    case PrintNode(dest, valueRegs, _) => dest.toSet ++ valueRegs
+    case AssertIterable(reg, _, _) => Set(reg)
+    case AssertNode(reg, _, _) => Set(reg)
+    case FunctionDeclNode(_, _, _, defaultArgRegs, _) => defaultArgRegs.toSet
+    case _ => Set()
+  }
+
+  def defs(node: Node): Set[Int] = node match {
+    case WriteRegisterNode(resultReg, _, _) => Set(resultReg)
+    case ConstantBooleanNode(resultReg, _, _) => Set(resultReg)
+    case ConstantIntNode(resultReg, _, _) => Set(resultReg)
+    case ConstantFloatNode(resultReg, _, _) => Set(resultReg)
+    case ConstantLongNode(resultReg, _, _) => Set(resultReg)
+    case ConstantComplexNode(resultReg, _, _) => Set(resultReg)
+    case ConstantStringNode(resultReg, _, _) => Set(resultReg)
+    case ConstantNoneNode(resultReg, _) => Set(resultReg)
+    case ReadVariableNode(_, resultReg, _, _) => Set(resultReg)
+    case ReadPropertyNode(_, _, resultReg, _, _) => Set(resultReg)
+    case ReadIndexableNode(_, _, resultReg, _) => Set(resultReg)
+    case HasAttributeNode(_, _, resultReg, _) => Set(resultReg)
+    case AfterCallNode(resultReg, _) => Set(resultReg)
+    case CompareOpNode(_, _, _, resultReg, _) => Set(resultReg)
+    case BinOpNode(_, _, _, resultReg, _) => Set(resultReg)
+    case UnOpNode(_, _, resultReg, _) => Set(resultReg)
+    case _ => Set()
+  }
+}
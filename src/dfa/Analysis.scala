@@ -9,4 +9,32 @@ trait Analysis[T] {
   
   def generateConstraint(node: Node): Constraint[T]
   def nodeDependencies(node: Node, solution: T): Set[Node]
+
+  /**
+   * Called by the worklist after the constraint of node has been evaluated.
+   * Returns the solution to continue with, and whether it differs from the old one.
+   */
+  def commit(node: Node, solution: T, newSolution: T): (T, Boolean) =
+    (newSolution, newSolution != solution)
+
+  /**
+   * Called by the worklist instead of using newSolution directly when node is a loop
+   * head that has been visited more than Worklist.widenAfter times. Returns newSolution
+   * with the state of node widened with respect to the old one, such that the loop
+   * terminates. The default does not widen.
+   */
+  def widen(node: Node, solution: T, newSolution: T): T = newSolution
+
+  /**
+   * Whether node may be evaluated right after pred in the same block, when the worklist
+   * evaluates chains of nodes as blocks (see Worklist.basicBlocks). The worklist already
+   * checks that the two nodes form a chain. The default never forms blocks.
+   */
+  def extendsBlock(pred: Node, node: Node): Boolean = false
+
+  /**
+   * Called by the worklist for the nodes inside a block, whose state is not stored.
+   * Returns solution without the state of node. The default keeps it.
+   */
+  def discard(node: Node, solution: T): T = solution
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package tapy.dfa
+
+/**
+ * Persistent hash array mapped trie. An update only copies the path from the root to the
+ * changed entry, so maps that are derived from each other share most of their subtrees.
+ * The binary operations (merge, forall2 and equals) skip subtrees that are the same
+ * instance in both maps, hence they only pay for the entries that differ.
+ */
+final class HashTrieMap[K, +V] private (private val root: HashTrieMap.TrieNode) extends Map[K, V] {
+  import HashTrieMap._
+
+  override def size: Int = sizeOf(root)
+
+  def get(key: K): Option[V] = {
+    val value = lookup(root, key, hashOf(key), 0)
+    if (value.asInstanceOf[AnyRef] eq Absent) None else Some(value.asInstanceOf[V])
+  }
+
+  override def contains(key: K): Boolean =
+    lookup(root, key, hashOf(key), 0).asInstanceOf[AnyRef] ne Absent
+
+  def iterator: Iterator[(K, V)] =
+    entries(root).asInstanceOf[Iterator[(K, V)]]
+
+  override def foreach[U](f: ((K, V)) => U): Unit =
+    visit(root, {(key, value) => f((key.asInstanceOf[K], value.asInstanceOf[V]))})
+
+  def +[V1 >: V](kv: (K, V1)): HashTrieMap[K, V1] = {
+    val newRoot = insert(root, kv._1, hashOf(kv._1), 0, kv._2, null)
+    if (newRoot eq root) this else new HashTrieMap(newRoot)
+  }
+
+  override def updated[V1 >: V](key: K, value: V1): HashTrieMap[K, V1] = this + ((key, value))
+
+  def -(key: K): HashTrieMap[K, V] = {
+    val newRoot = remove(root, key, hashOf(key), 0)
+    if (newRoot eq root) this else new HashTrieMap(newRoot)
+  }
+
+  override def empty: HashTrieMap[K, V] = HashTrieMap.empty
+
+  /**
+    * Returns the union of the two maps, where f combines the values of keys that are present
+    * in both (unless the values are the same instance). Returns this or that itself when
+    * the result equals it.
+    */
+  def merge[V1 >: V](that: HashTrieMap[K, V1], f: (K, V1, V1) => V1): HashTrieMap[K, V1] = {
+    val newRoot = mergeNodes(root, that.root, 0, f.asInstanceOf[(Any, Any, Any) => Any])
+    if (newRoot eq root) this else if (newRoot eq that.root) that else new HashTrieMap(newRoot)
+  }
+
+  /**
+    * Whether p holds for the values of every key of the two maps, where a missing value is
+    * given as absent. Keys whose values are the same instance in both maps are skipped.
+    */
+  def forall2[V1 >: V](that: HashTrieMap[K, V1], absent: V1, p: (K, V1, V1) => Boolean): Boolean =
+    zipForall(root, that.root, 0, absent, p.asInstanceOf[(Any, Any, Any) => Boolean])
+
+  override def equals(other: Any): Boolean = other match {
+    case other: HashTrieMap[_, _] =>
+      (this eq other) || (size == other.size && zipForall(root, other.root, 0, Absent, {(_, a, b) => a == b}))
+    case _ => super.equals(other)
+  }
+}
+
+object HashTrieMap {
+  private final val BITS = 5
+  private final val MASK = 31
+
+  private object Absent
+
+  private[dfa] sealed abstract class TrieNode
+  private final class Leaf(val hash: Int, val key: Any, val value: Any) extends TrieNode
+  private final class Collision(val hash: Int, val entries: List[(Any, Any)]) extends TrieNode
+  private final class Branch(val bitmap: Int, val children: Array[TrieNode], val size: Int) extends TrieNode
+
+  private val emptyMap = new HashTrieMap[Any, Nothing](null)
+
+  def empty[K, V]: HashTrieMap[K, V] = emptyMap.asInstanceOf[HashTrieMap[K, V]]
+
+  def apply[K, V](map: Map[K, V]): HashTrieMap[K, V] = map match {
+    case map: HashTrieMap[K, V] => map
+    case _ => map.foldLeft(empty[K, V]) {(acc, entry) => acc + entry}
+  }
+
+  private def hashOf(key: Any): Int = {
+    val h = key.##
+    val spread = h ^ (h >>> 20) ^ (h >>> 12)
+    spread ^ (spread >>> 7) ^ (spread >>> 4)
+  }
+
+  private def sizeOf(node: TrieNode): Int = node match {
+    case null => 0
+    case node: Leaf => 1
+    case node: Collision => node.entries.size
+    case node: Branch => node.size
+  }
+
+  private def bit(hash: Int, shift: Int): Int = 1 << ((hash >>> shift) & MASK)
+
+  private def slot(bitmap: Int, bit: Int): Int = Integer.bitCount(bitmap & (bit - 1))
+
+  private def lookup(node: TrieNode, key: Any, hash: Int, shift: Int): Any = node match {
+    case null => Absent
+    case node: Leaf => if (node.hash == hash && node.key == key) node.value else Absent
+    case node: Collision =>
+      if (node.hash != hash) Absent else node.entries.find(_._1 == key).map(_._2).getOrElse(Absent)
+    case node: Branch =>
+      val b = bit(hash, shift)
+      if ((node.bitmap & b) == 0) Absent else lookup(node.children(slot(node.bitmap, b)), key, hash, shift + BITS)
+  }
+
+  /**
+    * Inserts the key. If the key is present and combine is given, the new value is
+    * combine(present value). The node itself is returned if the value does not change.
+    */
+  private def insert(node: TrieNode, key: Any, hash: Int, shift: Int, value: Any, combine: Any => Any): TrieNode = node match {
+    case null => new Leaf(hash, key, value)
+    case node: Leaf =>
+      if (node.hash == hash && node.key == key) {
+        val newValue = if (combine == null) value else combine(node.value)
+        if (newValue.asInstanceOf[AnyRef] eq node.value.asInstanceOf[AnyRef]) node else new Leaf(hash, key, newValue)
+      } else if (node.hash == hash)
+        new Collision(hash, List((key, value), (node.key, node.value)))
+      else
+        pair(shift, node, node.hash, new Leaf(hash, key, value), hash)
+    case node: Collision =>
+      if (node.hash != hash)
+        pair(shift, node, node.hash, new Leaf(hash, key, value), hash)
+      else node.entries.find(_._1 == key) match {
+        case Some((_, oldValue)) =>
+          val newValue = if (combine == null) value else combine(oldValue)
+          if (newValue.asInstanceOf[AnyRef] eq oldValue.asInstanceOf[AnyRef]) node
+          else new Collision(hash, (key, newValue) :: node.entries.filterNot(_._1 == key))
+        case None => new Collision(hash, (key, value) :: node.entries)
+      }
+    case node: Branch =>
+      val b = bit(hash, shift)
+      val i = slot(node.bitmap, b)
+      if ((node.bitmap & b) == 0) {
+        val children = new Array[TrieNode](node.children.length + 1)
+        System.arraycopy(node.children, 0, children, 0, i)
+        children(i) = new Leaf(hash, key, value)
+        System.arraycopy(node.children, i, children, i + 1, node.children.length - i)
+        new Branch(node.bitmap | b, children, node.size + 1)
+      } else {
+        val child = node.children(i)
+        val newChild = insert(child, key, hash, shift + BITS, value, combine)
+        if (newChild eq child) node else withChild(node, i, child, newChild)
+      }
+  }
+
+  /* Builds the smallest branch that holds two nodes with different hashes */
+  private def pair(shift: Int, a: TrieNode, aHash: Int, b: TrieNode, bHash: Int): TrieNode = {
+    val aBit = bit(aHash, shift)
+    val bBit = bit(bHash, shift)
+    if (aBit == bBit)
+      new Branch(aBit, Array(pair(shift + BITS, a, aHash, b, bHash)), sizeOf(a) + sizeOf(b))
+    else if (Integer.compareUnsigned(aBit, bBit) < 0)
+      new Branch(aBit | bBit, Array(a, b), sizeOf(a) + sizeOf(b))
+    else
+      new Branch(aBit | bBit, Array(b, a), sizeOf(a) + sizeOf(b))
+  }
+
+  private def withChild(node: Branch, i: Int, oldChild: TrieNode, newChild: TrieNode): Branch = {
+    val children = node.children.clone()
+    children(i) = newChild
+    new Branch(node.bitmap, children, node.size - sizeOf(oldChild) + sizeOf(newChild))
+  }
+
+  private def remove(node: TrieNode, key: Any, hash: Int, shift: Int): TrieNode = node match {
+    case null => null
+    case node: Leaf => if (node.hash == hash && node.key == key) null else node
+    case node: Collision =>
+      if (node.hash != hash || !node.entries.exists(_._1 == key))
+        node
+      else node.entries.filterNot(_._1 == key) match {
+        case List((k, v)) => new Leaf(hash, k, v)
+        case entries => new Collision(hash, entries)
+      }
+    case node: Branch =>
+      val b = bit(hash, shift)
+      if ((node.bitmap & b) == 0)
+        node
+      else {
+        val i = slot(node.bitmap, b)
+        val child = node.children(i)
+        val newChild = remove(child, key, hash, shift + BITS)
+        if (newChild eq child)
+          node
+        else if (newChild != null)
+          withChild(node, i, child, newChild)
+        else if (node.children.length == 1)
+          null
+        else {
+          val children = new Array[TrieNode](node.children.length - 1)
+          System.arraycopy(node.children, 0, children, 0, i)
+          System.arraycopy(node.children, i + 1, children, i, children.length - i)
+          new Branch(node.bitmap & ~b, children, node.size - 1)
+        }
+      }
+  }
+
+  private def visit(node: TrieNode, f: (Any, Any) => Unit): Unit = node match {
+    case null =>
+    case node: Leaf => f(node.key, node.value)
+    case node: Collision => node.entries.foreach {(entry) => f(entry._1, entry._2)}
+    case node: Branch => node.children.foreach {(child) => visit(child, f)}
+  }
+
+  private def entries(node: TrieNode): Iterator[(Any, Any)] = node match {
+    case null => Iterator.empty
+    case node: Leaf => Iterator.single((node.key, node.value))
+    case node: Collision => node.entries.iterator
+    case node: Branch => node.children.iterator.flatMap(entries)
+  }
+
+  private def mergeNodes(a: TrieNode, b: TrieNode, shift: Int, f: (Any, Any, Any) => Any): TrieNode =
+    if ((a eq b) || b == null) a
+    else if (a == null) b
+    else (a, b) match {
+      case (a: Branch, b: Branch) =>
+        val bitmap = a.bitmap | b.bitmap
+        val children = new Array[TrieNode](Integer.bitCount(bitmap))
+        var sameAsA = bitmap == a.bitmap
+        var sameAsB = bitmap == b.bitmap
+        var size = 0
+        var remaining = bitmap
+        var i = 0
+        while (remaining != 0) {
+          val bit = remaining & -remaining
+          val aChild = if ((a.bitmap & bit) == 0) null else a.children(slot(a.bitmap, bit))
+          val bChild = if ((b.bitmap & bit) == 0) null else b.children(slot(b.bitmap, bit))
+          val child = mergeNodes(aChild, bChild, shift + BITS, f)
+          sameAsA = sameAsA && (child eq aChild)
+          sameAsB = sameAsB && (child eq bChild)
+          children(i) = child
+          size += sizeOf(child)
+          remaining &= remaining - 1
+          i += 1
+        }
+        if (sameAsA) a else if (sameAsB) b else new Branch(bitmap, children, size)
+
+      case (a: Branch, _) =>
+        // Insert the few entries of b into a
+        var result: TrieNode = a
+        visit(b, {(key, bValue) => result = insert(result, key, hashOf(key), shift, bValue, {(aValue) => combine(f, key, aValue, bValue)})})
+        result
+
+      case _ =>
+        var result: TrieNode = b
+        visit(a, {(key, aValue) => result = insert(result, key, hashOf(key), shift, aValue, {(bValue) => combine(f, key, aValue, bValue)})})
+        result
+    }
+
+  private def combine(f: (Any, Any, Any) => Any, key: Any, a: Any, b: Any): Any =
+    if (a.asInstanceOf[AnyRef] eq b.asInstanceOf[AnyRef]) a else f(key, a, b)
+
+  private def zipForall(a: TrieNode, b: TrieNode, shift: Int, absent: Any, p: (Any, Any, Any) => Boolean): Boolean =
+    if (a eq b) true
+    else (a, b) match {
+      case (a: Branch, b: Branch) =>
+        var remaining = a.bitmap | b.bitmap
+        var result = true
+        while (result && remaining != 0) {
+          val bit = remaining & -remaining
+          val aChild = if ((a.bitmap & bit) == 0) null else a.children(slot(a.bitmap, bit))
+          val bChild = if ((b.bitmap & bit) == 0) null else b.children(slot(b.bitmap, bit))
+          result = zipForall(aChild, bChild, shift + BITS, absent, p)
+          remaining &= remaining - 1
+        }
+        result
+
+      case _ =>
+        entries(a).forall {(entry) =>
+          val bValue = lookup(b, entry._1, hashOf(entry._1), shift)
+          (entry._2.asInstanceOf[AnyRef] eq bValue.asInstanceOf[AnyRef]) ||
+          p(entry._1, entry._2, if (bValue.asInstanceOf[AnyRef] eq Absent) absent else bValue)
+        } &&
+        entries(b).forall {(entry) =>
+          (lookup(a, entry._1, hashOf(entry._1), shift).asInstanceOf[AnyRef] ne Absent) || p(entry._1, absent, entry._2)
+        }
+    }
+}
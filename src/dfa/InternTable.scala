@@ -0,0 +1,108 @@
+package tapy.dfa
+
+import java.lang.ref.{ReferenceQueue, WeakReference}
+
+/**
+ * Canonicalizes equal elements to a single instance (hash-consing). The table only holds
+ * weak references, so elements that are no longer used anywhere can still be collected.
+ * It is shared by the analyses of all threads, and lookups do not lock.
+ */
+class InternTable[T <: AnyRef] {
+  import InternTable._
+
+  private val table = new java.util.concurrent.ConcurrentHashMap[AnyRef, Entry[T]]()
+  private val queue = new ReferenceQueue[T]()
+
+  def intern(elt: T): T = {
+    var canonical = lookup(elt)
+    while (canonical == null) {
+      purge()
+      val entry = new Entry(elt, elt.hashCode, queue)
+      val existing = table.putIfAbsent(entry, entry)
+      canonical = if (existing == null) elt else existing.get()
+    }
+    canonical
+  }
+
+  /** Returns the canonical instance equal to elt, or null if there is none. */
+  def lookup(elt: T): T = {
+    val entry = table.get(new Probe(elt))
+    if (entry == null) null.asInstanceOf[T] else entry.get()
+  }
+
+  def size: Int = {
+    purge()
+    table.size()
+  }
+
+  /** Forgets the canonical instances; the elements remain equal to the ones interned from now on. */
+  def clear(): Unit = table.clear()
+
+  // Drops the entries of the elements that were collected
+  private def purge(): Unit = {
+    var entry = queue.poll()
+    while (entry != null) {
+      table.remove(entry)
+      entry = queue.poll()
+    }
+  }
+}
+
+object InternTable {
+
+  // Entries of collected elements only equal themselves, such that they can be removed
+  private final class Entry[T](elt: T, val hash: Int, queue: ReferenceQueue[T]) extends WeakReference[T](elt, queue) {
+    override def hashCode: Int = hash
+
+    override def equals(other: Any): Boolean = other match {
+      case other: Entry[_] =>
+        val (canonical, otherCanonical) = (get(), other.get())
+        (this eq other) || (canonical != null && otherCanonical != null && canonical == otherCanonical)
+      case other: Probe[_] => other.equals(this)
+      case _ => false
+    }
+  }
+
+  // The key that an element is looked up by
+  private final class Probe[T](val elt: T) {
+    override val hashCode: Int = elt.hashCode
+
+    override def equals(other: Any): Boolean = other match {
+      case other: Entry[_] =>
+        val canonical = other.get()
+        canonical != null && elt == canonical
+      case _ => false
+    }
+  }
+}
+
+/**
+ * A memo table holding at most capacity entries, evicting the least recently used entry.
+ * Each thread has a table of its own, so the analyses of several threads do not contend
+ * for (or evict the entries of) one table.
+ */
+class BoundedCache[K, V](capacity: Int) {
+  private val tables = new ThreadLocal[java.util.LinkedHashMap[K, V]]() {
+    override def initialValue(): java.util.LinkedHashMap[K, V] = new java.util.LinkedHashMap[K, V](16, 0.75f, true) {
+      override def removeEldestEntry(eldest: java.util.Map.Entry[K, V]): Boolean = size() > capacity
+    }
+  }
+
+  def getOrElseUpdate(key: K, value: => V): V = {
+    val table = tables.get()
+    val cached = table.get(key)
+    if (cached != null)
+      cached
+    else {
+      val result = value
+      table.put(key, result)
+      result
+    }
+  }
+
+  /** The number of entries of the table of the current thread. */
+  def size: Int = tables.get().size()
+
+  /** Drops the entries of the table of the current thread. */
+  def clear(): Unit = tables.get().clear()
+}
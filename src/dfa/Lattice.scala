@@ -7,5 +7,12 @@ trait Lattice[T] {
   def compare(a: T, b: T): Boolean
   def greatestLowerBound(a: T, b: T): T
   def leastUpperBound(a: T, b: T): T
+  
+  /**
+   * An upper bound of a and b, such that any chain a0, widen(a0, a1), widen(widen(a0, a1), a2), ...
+   * stabilizes after finitely many steps. Only lattices of infinite height need to override it.
+   */
+  def widen(a: T, b: T): T = leastUpperBound(a, b)
+  
   def eltToString(elt: T, indent: String): String
 }
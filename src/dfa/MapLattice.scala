@@ -28,7 +28,11 @@ class MapLattice[S, T](lattice: Lattice[T]) extends Lattice[MapElement] {
     case _ => true
   }
 
-  def leastUpperBound(aa: MapElement, bb: MapElement) = (aa, bb) match {
+  def leastUpperBound(aa: MapElement, bb: MapElement): MapElement = pointwise(aa, bb, lattice.leastUpperBound)
+
+  override def widen(aa: MapElement, bb: MapElement): MapElement = pointwise(aa, bb, lattice.widen)
+
+  private def pointwise(aa: MapElement, bb: MapElement, f: (T, T) => T): MapElement = (aa, bb) match {
     case (Concrete(a), Concrete(b)) => {
       val aKeys: Set[S] = a.keySet
       val bKeys: Set[S] = b.keySet
@@ -36,7 +40,7 @@ class MapLattice[S, T](lattice: Lattice[T]) extends Lattice[MapElement] {
       Concrete ((aKeys ++ bKeys).foldLeft (Map(): Map[S, T]) ((m: Map[S, T], key: S) => {
                                                       val aVal: T = a.getOrElse(key, lattice.bottom)
                                                       val bVal: T = b.getOrElse(key, lattice.bottom)
-                                                      (m + (key -> lattice.leastUpperBound(aVal, bVal)))
+                                                      (m + (key -> f(aVal, bVal)))
                                                     }))
     }
     case _ => Top()
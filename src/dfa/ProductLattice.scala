@@ -18,6 +18,12 @@ class ProductLattice[A, B](latticeA: Lattice[A], latticeB: Lattice[B]) extends L
     (fst, snd)
   }
 
+  override def widen(a: (A, B), b: (A, B)) = {
+    val fst = latticeA.widen(a._1, b._1)
+    val snd = latticeB.widen(a._2, b._2)
+    (fst, snd)
+  }
+
   def greatestLowerBound(a: (A, B), b: (A, B)) = {
     val fst = latticeA.greatestLowerBound(a._1, b._1)
     val snd = latticeB.greatestLowerBound(a._2, b._2)
@@ -12,52 +12,293 @@ import java.io._
 import tapy.export._
 import tapy.lattices.AnalysisLattice
 import tapy.typeanalysis.TypeAnalysis
+import tapy.typeanalysis.Options
 import tapy.lattices.HeapLattice
 
-class Worklist[T] (analysis: Analysis[T], lattice: Lattice[T], var cfg: ControlFlowGraph, path: String) {
-  
+/**
+ * The worklist solver. The settings of a run (widening, budget, blocks, progress and the CFG
+ * cache) are taken from options, such that every analysis of the same options runs alike.
+ */
+class Worklist[T] (analysis: Analysis[T], lattice: Lattice[T], var cfg: ControlFlowGraph, val path: String, val options: Options = Options()) {
+
   var oldCfg: ControlFlowGraph = cfg
   var newSubCfg: ControlFlowGraph = null
-  
+
+  // Number of constraints evaluated during the last run
+  var visits: Int = 0
+
+  // Number of visits of a loop head after which its solution is widened (0 for none), see Analysis.widen
+  val widenAfter: Int = options.widenAfter
+
+  // Budget of a run: the number of visits and milliseconds (0 for no limit)
+  val maxVisits: Int = options.maxVisits
+  val timeLimit: Long = options.timeLimit
+
+  // Milliseconds between the progress lines of a run on stderr (0 for none)
+  val progressInterval: Long = options.progressInterval
+
+  // Keeps the CFGs of imported modules on disk if set; may be replaced by a cache that is shared between runs
+  var cfgCache: CFGCache = options.cfgCache.map((dir) => new CFGCache(new File(dir))).orNull
+
+  // Whether the last run ran out of its budget, in which case its result is top
+  var exhausted: Boolean = false
+
+  // Whether straight-line chains of nodes are evaluated as blocks, see updateBlocks
+  val basicBlocks: Boolean = options.basicBlocks
+
+  // Targets of back edges in the current CFG, and the number of times each has been visited
+  private var loopHeads: Set[Node] = Set()
+  private val loopHeadVisits = new java.util.HashMap[Node, Int]()
+
+  // Priority of each node: its reverse postorder number in the current CFG
+  private var priorities: Map[Node, Int] = Map()
+  private var nextPriority: Int = 0
+
+  // Pending nodes ordered by priority, each node is present at most once
+  private val pending = new java.util.TreeMap[Int, Node]()
+
+  // The nodes of the block that starts at each block head, and the head of the block of every other node in a block
+  private var blocks: Map[Node, List[Node]] = Map()
+  private var blockHeads: Map[Node, Node] = Map()
+
+  private var constraints: ConstraintMap[T] = Map()
+
   def run(): T = {
-    var constraints = cfg.nodes.foldLeft (Map(): ConstraintMap[T]) ((m, node) => m + (node -> (analysis.generateConstraint(node))))
-
-    def visit (worklist: List[Node], solution: T): T = worklist match {
-      case Nil => solution
-      case node :: tl => {
-        var worklist = tl
-        val constraint = constraints(node)
-        val newSolution = constraint(solution)
-        
-        // analysis.pp(node, newSolution)
-        
-        if (newSolution != solution)
-          worklist = worklist ++ analysis.nodeDependencies(node, newSolution)
-
-        if (cfg eq oldCfg) {
-          visit (worklist, newSolution)
-        } else {
-          oldCfg = cfg
-          constraints = newSubCfg.nodes.foldLeft(constraints) {(acc, node) => acc + (node -> analysis.generateConstraint(node)) }
-          visit (newSubCfg.entryNodes.toList ++ worklist, newSolution)
-        }
+    constraints = cfg.nodes.foldLeft (Map(): ConstraintMap[T]) ((m, node) => m + (node -> (analysis.generateConstraint(node))))
+    var solution = lattice.bottom
+
+    analysis.worklist = this
+    visits = 0
+    exhausted = false
+    loopHeadVisits.clear()
+    val started = System.currentTimeMillis()
+    val deadline = if (timeLimit > 0) started + timeLimit else Long.MaxValue
+    var nextProgress = started + progressInterval
+
+    updatePriorities()
+    pending.clear()
+    addAll(cfg.entryNodes) // This only works for a forward analysis!
+
+    while (!pending.isEmpty()) {
+      val polled = pending.pollFirstEntry().getValue()
+      val block = blocks.getOrElse(blockHeads.getOrElse(polled, polled), List(polled))
+      block.foreach((node) => pending.remove(getPriority(node), node))
+
+      val node = block.last
+      val (newSolution, changed) = analysis.commit(node, solution, evaluate(block, solution))
+      visits += block.size
+
+      if ((maxVisits > 0 && visits >= maxVisits) || System.currentTimeMillis() > deadline) {
+        // Give up on a fixpoint, top is a sound (if useless) result
+        exhausted = true
+        pending.clear()
+        return lattice.top
+      }
+
+      if (progressInterval > 0 && System.currentTimeMillis() >= nextProgress) {
+        scala.Console.err.println("[worklist] " + visits + " visits, " + pending.size() + " pending, " + cfg.nodes.size + " nodes, " + (System.currentTimeMillis() - started) + " ms")
+        nextProgress = System.currentTimeMillis() + progressInterval
+      }
+
+      // analysis.pp(node, newSolution)
+
+      if (changed)
+        addAll(analysis.nodeDependencies(node, newSolution))
+
+      solution = newSolution
+
+      if (!(cfg eq oldCfg)) {
+        // A module or a transformed node has been spliced into the CFG
+        oldCfg = cfg
+        constraints = newSubCfg.nodes.foldLeft(constraints) {(acc, node) => acc + (node -> analysis.generateConstraint(node)) }
+        updatePriorities()
+        addAll(newSubCfg.entryNodes)
+
+        // The predecessors of the new nodes may have been inside a block, in which case their state is not stored
+        if (basicBlocks)
+          addAll(newSubCfg.entryNodes.flatMap(cfg.getPredecessors))
       }
     }
 
-    analysis.worklist = this
-    return visit (cfg.entryNodes.toList, lattice.bottom) // This only works for a forward analysis!
+    return solution
+  }
+
+  /**
+   * Evaluates the constraints of the nodes of a block in sequence. The states of the nodes
+   * inside the block are only needed by their successor, so they are dropped before the
+   * solution is committed; only the first and the last node of a block keep their state.
+   */
+  private def evaluate(block: List[Node], solution: T): T = {
+    val newSolution = block.foldLeft(solution) {(acc, node) => widen(node, acc, constraints(node)(acc))}
+    if (block.size <= 2) newSolution
+    else block.tail.init.foldLeft(newSolution) {(acc, node) => analysis.discard(node, acc)}
+  }
+
+  /**
+   * Returns solution with the state of node, which is recomputed from the first node of its
+   * block if node is inside a block (see evaluate). Used to query the states of the result.
+   */
+  def materialize(node: Node, solution: T): T = blockHeads.get(node) match {
+    case Some(head) if !(blocks(head).last eq node) =>
+      val nodes = blocks(head).tail.takeWhile((other) => !(other eq node)) :+ node
+      nodes.foldLeft(solution) {(acc, other) => constraints(other)(acc)}
+    case _ => solution
+  }
+
+  // The files of the modules that have been looked up, i.e. the files that the result depends on
+  var moduleFiles: Set[File] = Set()
+
+  def getModuleFile(name: String): File = {
+    val file = new File(path + name + ".py")
+    moduleFiles = moduleFiles + file
+    file
   }
-  
+
   def getCFG(name: String): ControlFlowGraph = {
-    val file = path + name + ".py"
-    val parser: BaseParser = new BaseParser(new ANTLRFileStream(path + name + ".py"), path + name + ".py", "ascii")
-    val ast = parser.parseModule()
-    val cfg = ast.accept(new CFGGeneratorVisitor(name)).minify().normalize()
-    if (cfg.exitNodes.size == 1) cfg else cfg.append(NoOpNode("Module Exit"))
+    val file = getModuleFile(name)
+    if (cfgCache != null) cfgCache.getCFG(file, name) else CFGCache.build(file, name)
   }
-  
+
   def setCFG(cfg: ControlFlowGraph, newSubCfg: ControlFlowGraph): Unit = {
     this.cfg = cfg
     this.newSubCfg = newSubCfg
   }
-}
\ No newline at end of file
+
+  private def widen(node: Node, solution: T, newSolution: T): T = {
+    if (widenAfter <= 0 || !loopHeads.contains(node))
+      return newSolution
+
+    val count = loopHeadVisits.getOrDefault(node, 0) + 1
+    loopHeadVisits.put(node, count)
+    if (count > widenAfter) analysis.widen(node, solution, newSolution) else newSolution
+  }
+
+  /*
+   * Pending nodes
+   */
+
+  private def addAll(nodes: Set[Node]): Unit =
+    nodes.foreach {(node) => pending.put(getPriority(node), node)}
+
+  private def getPriority(node: Node): Int = priorities.get(node) match {
+    case Some(priority) => priority
+    case None =>
+      // Only nodes that are not (yet) part of the CFG end up here; visit them last
+      nextPriority += 1
+      priorities = priorities + (node -> nextPriority)
+      nextPriority
+  }
+
+  /**
+   * Recomputes the priorities of the nodes in the current CFG, and reorders the
+   * pending nodes accordingly. Nodes are prioritized by their reverse postorder,
+   * such that (outside of loops) a node is visited after all of its predecessors.
+   * Function bodies are only reached through the call graph, so each node without
+   * predecessors is used as an additional root.
+   *
+   * A node with a predecessor that is not ordered before it is the target of a back
+   * edge, i.e. the head of a loop.
+   */
+  private def updatePriorities(): Unit = {
+    val order = Worklist.reversePostorder(cfg)
+    priorities = order.zipWithIndex.toMap
+    nextPriority = order.size
+    loopHeads = order.filter {(node) =>
+      (cfg.getPredecessors(node) ++ cfg.getExceptionPredecessors(node)).exists((pred) => priorities(pred) >= priorities(node))
+    }.toSet
+
+    val nodes = new java.util.ArrayList[Node](pending.values())
+    pending.clear()
+    for (i <- 0 until nodes.size())
+      pending.put(getPriority(nodes.get(i)), nodes.get(i))
+
+    if (basicBlocks)
+      updateBlocks()
+  }
+
+  /**
+   * Groups the chains of the current CFG into blocks. A node continues the block of its
+   * predecessor if it is the only successor of the predecessor and the predecessor is its
+   * only predecessor, neither has exception edges between them, it is not a loop head, and
+   * the analysis allows it (see Analysis.extendsBlock). A block is evaluated as a whole, and
+   * only the states at its first and last node are stored.
+   */
+  private def updateBlocks(): Unit = {
+    def next(node: Node): Option[Node] = {
+      val succs = cfg.getSuccessors(node)
+      if (succs.size != 1 || !cfg.getExceptionSuccessors(node).isEmpty)
+        return None
+
+      val succ = succs.head
+      if ((succ eq node) || loopHeads.contains(succ) || cfg.getPredecessors(succ).size != 1 ||
+          !cfg.getExceptionPredecessors(succ).isEmpty || !analysis.extendsBlock(node, succ)) None
+      else Some(succ)
+    }
+
+    val nexts = cfg.nodes.foldLeft(Map[Node, Node]()) {(acc, node) =>
+      next(node) match {
+        case Some(succ) => acc + (node -> succ)
+        case None => acc
+      }
+    }
+    val continued = nexts.values.toSet
+
+    blocks = Map()
+    blockHeads = Map()
+    cfg.nodes.foreach {(head) =>
+      if (!continued.contains(head) && nexts.contains(head)) {
+        val block = Iterator.iterate(Option(head))(_.flatMap(nexts.get)).takeWhile(_.isDefined).map(_.get).toList
+        blocks = blocks + (head -> block)
+        blockHeads = block.tail.foldLeft(blockHeads) {(acc, node) => acc + (node -> head)}
+      }
+    }
+  }
+}
+
+object Worklist {
+
+  // No widening by default: the lattices of the type analysis have finite height, see ValueLattice.widen
+  val DEFAULT_WIDEN_AFTER = 0
+
+  /**
+   * Computes a reverse postorder of the nodes in the CFG (following both normal and
+   * exception edges). The depth first search is iterative, such that long straight-line
+   * modules do not overflow the stack.
+   */
+  def reversePostorder(cfg: ControlFlowGraph): List[Node] = {
+    var visited = Set[Node]()
+    var postorder = List[Node]()
+
+    val targets = (cfg.edges.values ++ cfg.exceptionEdges.values).foldLeft(Set[Node]()) {(acc, succs) => acc ++ succs}
+    val roots = cfg.entryNodes.toList ++ cfg.nodes.filter((node) => !targets.contains(node)) ++ cfg.nodes
+
+    roots.foreach {(root) =>
+      if (!visited.contains(root)) {
+        visited = visited + root
+        var stack = List[(Node, List[Node])]((root, successors(cfg, root)))
+
+        while (!stack.isEmpty) {
+          val (node, succs) = stack.head
+          succs match {
+            case succ :: remaining =>
+              stack = (node, remaining) :: stack.tail
+              if (!visited.contains(succ)) {
+                visited = visited + succ
+                stack = (succ, successors(cfg, succ)) :: stack
+              }
+
+            case Nil =>
+              stack = stack.tail
+              postorder = node :: postorder
+          }
+        }
+      }
+    }
+
+    // Prepending the finished nodes reverses the postorder
+    postorder
+  }
+
+  private def successors(cfg: ControlFlowGraph, node: Node): List[Node] =
+    (cfg.getSuccessors(node) ++ cfg.getExceptionSuccessors(node)).toList
+}
@@ -0,0 +1,101 @@
+package tapy.export
+
+import java.io._
+import java.util.concurrent.{ArrayBlockingQueue, ConcurrentLinkedQueue, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+import scala.collection.JavaConversions._
+
+/**
+ * Writes Graphviz graphs to .dot files in the background, such that the analysis does not
+ * wait for them. The graphs are generated and written on a bounded pool of threads; when its
+ * queue is full, the submitting thread writes the file itself.
+ *
+ * In the Png mode, the .dot files are rendered when finish is called, by a few batched dot
+ * processes rather than a process per file. X.dot is rendered to X.png.
+ */
+object GraphvizFiles {
+  sealed trait Mode
+  case object Off extends Mode
+  case object Dot extends Mode
+  case object Png extends Mode
+
+  var mode: Mode = Png
+
+  // Number of files that one dot process renders
+  val batchSize = 64
+
+  private val threads = math.max(1, math.min(4, Runtime.getRuntime().availableProcessors() / 2))
+
+  private var executor: ThreadPoolExecutor = null
+
+  // The .dot files that are written and not yet rendered
+  private val written = new ConcurrentLinkedQueue[String]()
+
+  /** Writes the graph to fileName (a .dot file), unless the export is off. */
+  def submit(fileName: String, graph: => GraphvizExporter.Graph): Unit = {
+    if (mode == Off)
+      return
+
+    getExecutor().execute(new Runnable {
+      def run(): Unit = write(fileName, graph)
+    })
+  }
+
+  /** Waits for the submitted files to be written, and renders them in the Png mode. */
+  def finish(): Unit = {
+    synchronized {
+      if (executor != null) {
+        executor.shutdown()
+        executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+        executor = null
+      }
+    }
+
+    val files = Iterator.continually(written.poll()).takeWhile(_ != null).toList
+    if (mode == Png)
+      files.grouped(batchSize).foreach(render)
+  }
+
+  private def getExecutor(): ThreadPoolExecutor = synchronized {
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](16 * threads), new ThreadFactory {
+        def newThread(runnable: Runnable): Thread = {
+          val thread = new Thread(runnable, "graphviz")
+          thread.setDaemon(true)
+          thread
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy())
+    }
+    executor
+  }
+
+  private def write(fileName: String, graph: GraphvizExporter.Graph): Unit = {
+    try {
+      val out = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))
+      try {
+        GraphvizExporter.export(graph, out)
+      } finally {
+        out.close()
+      }
+      written.add(fileName)
+    } catch {
+      case e: IOException => scala.Console.err.println("Could not write " + fileName + ": " + e.getMessage())
+    }
+  }
+
+  // Renders files with one dot process. dot -O writes X.dot to X.dot.png, which is moved to X.png
+  private def render(files: List[String]): Unit = {
+    try {
+      val process = new ProcessBuilder(List("dot", "-Tpng", "-O") ++ files).inheritIO().start()
+      if (process.waitFor() != 0)
+        scala.Console.err.println("dot failed on " + files.size + " files")
+
+      files.foreach {(file) =>
+        val rendered = new File(file + ".png")
+        if (rendered.isFile())
+          rendered.renameTo(new File(file.stripSuffix(".dot") + ".png"))
+      }
+    } catch {
+      case e: IOException => scala.Console.err.println("Could not run dot: " + e.getMessage())
+    }
+  }
+}
@@ -61,8 +61,8 @@ object AnalysisLattice extends ProductLattice(ProgramStateLattice, CallGraphLatt
       setState(acc, node, StateLattice.updateHeap(getState(node, acc), label, obj))
     }
   
-  def updateCallGraph(el: Elt, callGraph: CallGraphLattice.Elt): Elt =
-    (getProgramState(el), CallGraphLattice.leastUpperBound(getCallGraph(el), callGraph))
+  def updateCallGraph(el: Elt, edges: Set[CallGraphLattice.Edge]): Elt =
+    (getProgramState(el), CallGraphLattice.addEdges(getCallGraph(el), edges))
 
   /* Pack and unpack */
   
@@ -88,7 +88,7 @@ object AnalysisLattice extends ProductLattice(ProgramStateLattice, CallGraphLatt
     val (programState2, callGraph2) = el2
     
     if (callGraph1 != callGraph2) {
-      result = "Call graphs differ: " + (((callGraph1 union callGraph2) intersect callGraph1) intersect callGraph2) + ".\n"
+      result = "Call graphs differ: " + (((callGraph1.edges union callGraph2.edges) intersect callGraph1.edges) intersect callGraph2.edges) + ".\n"
     }
     
     val state1 = node.getState(el1)
@@ -3,24 +3,103 @@ package tapy.lattices
 import tapy.dfa._
 import tapy.cfg._
 
+/**
+  * The edges of the call graph, along with forward and reverse multimaps from each node to
+  * its edges, partitioned by the two flags of the edges. Equality only considers the edges.
+  */
+case class CallGraph(edges: Set[CallGraphLattice.Edge])
+                    (val successors: Map[(Node, Boolean, Boolean), Set[CallGraphLattice.Edge]],
+                     val predecessors: Map[(Node, Boolean, Boolean), Set[CallGraphLattice.Edge]]) {
+  def size: Int = edges.size
+}
+
 /**
   * Any: Context sensitivity
   * Boolean (1): True = Function call, False = Constructor call
   * Boolean (2): True = Normal edge, False = Exception edge
+  *
+  * The elements only grow during the analysis (updates are joins), hence the size of
+  * the edge set suffices to tell whether a call graph has changed (see hasGrown).
   */
-object CallGraphLattice extends PowerSubSetLattice[(Any, Node, Any, Node, Boolean, Boolean)] {
+object CallGraphLattice extends Lattice[CallGraph] {
+  type Elt = CallGraph
+  type Edge = (Any, Node, Any, Node, Boolean, Boolean)
+
+  private val flags = List((true, true), (true, false), (false, true), (false, false))
+
+  def top: Elt = null
+  def bottom: Elt = CallGraph(Set())(Map(), Map())
+
+  def compare(a: Elt, b: Elt): Boolean =
+    if (b == null) true else if (a == null) false else a.edges.subsetOf(b.edges)
+
+  def leastUpperBound(a: Elt, b: Elt): Elt =
+    if (a == null || b == null) null else if (a.size < b.size) addEdges(b, a.edges) else addEdges(a, b.edges)
+
+  def greatestLowerBound(a: Elt, b: Elt): Elt =
+    if (a == null) b else if (b == null) a else addEdges(bottom, a.edges & b.edges)
+
+  def eltToString(elt: Elt, indent: String): String = {
+    val elementsString =
+      if (elt == null)
+        "<TOP>"
+      else
+        elt.edges.foldLeft ("") ((s: String, e: Edge) => {
+          val eString = e.toString
+          if (s == "")
+            eString
+          else
+            s"$s, $eString"
+        })
+    s"${indent}{$elementsString}\n"
+  }
+
+  /* Updaters */
+
+  /**
+    * Joins the edges into the call graph. Returns el itself if no edge is new.
+    */
+  def addEdges(el: Elt, edges: Set[Edge]): Elt =
+    if (el == null)
+      null
+    else
+      edges.foldLeft(el) {(acc, edge) =>
+        if (acc.edges.contains(edge))
+          acc
+        else {
+          val (_, pred, _, succ, funcCall, normalEdge) = edge
+          CallGraph(acc.edges + edge)(addToMultimap(acc.successors, (pred, funcCall, normalEdge), edge),
+                                      addToMultimap(acc.predecessors, (succ, funcCall, normalEdge), edge))
+        }
+      }
+
+  private def addToMultimap(map: Map[(Node, Boolean, Boolean), Set[Edge]], key: (Node, Boolean, Boolean), edge: Edge) =
+    map + (key -> (map.getOrElse(key, Set()) + edge))
+
+  /**
+    * Whether newEl contains edges that are not in oldEl, given that newEl was obtained by
+    * adding edges to oldEl.
+    */
+  def hasGrown(oldEl: Elt, newEl: Elt): Boolean =
+    if (oldEl eq newEl) false else if (oldEl == null || newEl == null) true else oldEl.size != newEl.size
 
   /* Getters */
-  
-  def getPredecessors(el: CallGraphLattice.Elt, node: Node, predicate: (Any, Node, Any, Node, Boolean, Boolean) => Boolean = {(_,_,_,_,_,_) => true}): Set[Node] =
+
+  private def getEdges(map: Map[(Node, Boolean, Boolean), Set[Edge]], node: Node, partitions: List[(Boolean, Boolean)]): Iterator[Edge] =
+    partitions.iterator.flatMap {(partition) =>
+      val (funcCall, normalEdge) = partition
+      map.getOrElse((node, funcCall, normalEdge), Set()).iterator
+    }
+
+  def getPredecessors(el: CallGraphLattice.Elt, node: Node, predicate: (Any, Node, Any, Node, Boolean, Boolean) => Boolean = {(_,_,_,_,_,_) => true}, partitions: List[(Boolean, Boolean)] = flags): Set[Node] =
     if (el != null)
-      el.foldLeft(Set[Node]()) {(acc, elt) =>
+      getEdges(el.predecessors, node, partitions).foldLeft(Set[Node]()) {(acc, elt) =>
         val (predCtx, pred, succCtx, succ, funcCall, normalEdge) = elt
-        if (succ == node && predicate(predCtx, pred, succCtx, succ, funcCall, normalEdge)) acc + pred else acc
+        if (predicate(predCtx, pred, succCtx, succ, funcCall, normalEdge)) acc + pred else acc
       }
     else
       Set()
-  
+
   def getPredecessorsExceptConstructorReturn(el: CallGraphLattice.Elt, node: Node): Set[Node] = {
     getPredecessors(el, node, {(_, pred, _, _, funcCall, _) =>
       if (funcCall)
@@ -32,35 +111,35 @@ object CallGraphLattice extends PowerSubSetLattice[(Any, Node, Any, Node, Boolea
         }
     })
   }
-  
+
   def getExceptionPredecessors(el: CallGraphLattice.Elt, node: Node): Set[Node] = {
-    getPredecessors(el, node, ((_, pred, _, _, _, normal) => !normal))
+    getPredecessors(el, node, partitions = List((true, false), (false, false)))
   }
-  
+
   def getFunctionCallPredecessors(el: CallGraphLattice.Elt, node: Node): Set[Node] = {
-    getPredecessors(el, node, {(_, _, _, _, funcCall, _) => funcCall})
+    getPredecessors(el, node, partitions = List((true, true), (true, false)))
   }
-  
+
   def getConstructorCallPredecessors(el: CallGraphLattice.Elt, node: Node): Set[Node] =
-    getPredecessors(el, node, {(_, _, _, _, funcCall, _) => !funcCall})
-  
-  def getSuccessors(el: CallGraphLattice.Elt, node: Node, predicate: (Any, Node, Any, Node, Boolean, Boolean) => Boolean = {(_,_,_,_,_,_) => true}): Set[Node] =
+    getPredecessors(el, node, partitions = List((false, true), (false, false)))
+
+  def getSuccessors(el: CallGraphLattice.Elt, node: Node, predicate: (Any, Node, Any, Node, Boolean, Boolean) => Boolean = {(_,_,_,_,_,_) => true}, partitions: List[(Boolean, Boolean)] = flags): Set[Node] =
     if (el != null)
-      el.foldLeft(Set[Node]()) {(acc, elt) =>
+      getEdges(el.successors, node, partitions).foldLeft(Set[Node]()) {(acc, elt) =>
         val (predCtx, pred, succCtx, succ, funcCall, normalEdge) = elt
-        if (pred == node && predicate(predCtx, pred, succCtx, succ, funcCall, normalEdge)) acc + succ else acc
+        if (predicate(predCtx, pred, succCtx, succ, funcCall, normalEdge)) acc + succ else acc
       }
     else
       Set()
-  
+
   def getFunctionCallSuccessors(el: CallGraphLattice.Elt, node: Node): Set[Node] = {
-    getSuccessors(el, node, {(_, _, _, _, funcCall, _) => funcCall})
+    getSuccessors(el, node, partitions = List((true, true), (true, false)))
   }
-  
+
   def getConstructorCallSuccessors(el: CallGraphLattice.Elt, node: Node): Set[Node] =
-    getSuccessors(el, node, {(_, _, _, _, funcCall, _) => !funcCall})
-  
+    getSuccessors(el, node, partitions = List((false, true), (false, false)))
+
   def getExceptionSuccessors(el: CallGraphLattice.Elt, node: Node): Set[Node] = {
-    getSuccessors(el, node, ((_, _, _, _, _, normal) => !normal))
+    getSuccessors(el, node, partitions = List((true, false), (false, false)))
   }
-}
\ No newline at end of file
+}
@@ -6,7 +6,33 @@ import tapy.dfa._
 import tapy.cfg._
 import java.io._
 
+/**
+  * The heaps are persistent hash tries (see HashTrieMap). Heaps that flow along the CFG are
+  * derived from each other by a few updates, so joins and compares of two heaps only visit
+  * the subtrees that are not shared, rather than every object of both heaps.
+  */
 object HeapLattice extends MapLattice[ObjectLabel, ObjectLattice.Elt](ObjectLattice) {
+
+  override def bottom: Elt = Concrete(HashTrieMap.empty[ObjectLabel, ObjectLattice.Elt])
+
+  override def compare(a: Elt, b: Elt): Boolean = (a, b) match {
+    case (Concrete(aMap), Concrete(bMap)) =>
+      HashTrieMap(aMap).forall2(HashTrieMap(bMap), ObjectLattice.bottom, {(_, aObj: ObjectLattice.Elt, bObj: ObjectLattice.Elt) =>
+        ObjectLattice.compare(aObj, bObj)})
+    case _ => super.compare(a, b)
+  }
+
+  /* Objects that are only present in one of the heaps are kept as is (the join with bottom) */
+  override def leastUpperBound(a: Elt, b: Elt): Elt = merge(a, b, ObjectLattice.leastUpperBound)
+
+  override def widen(a: Elt, b: Elt): Elt = merge(a, b, ObjectLattice.widen)
+
+  private def merge(a: Elt, b: Elt, f: (ObjectLattice.Elt, ObjectLattice.Elt) => ObjectLattice.Elt): Elt = (a, b) match {
+    case (Concrete(aMap), Concrete(bMap)) =>
+      val map = HashTrieMap(aMap).merge(HashTrieMap(bMap), {(_, aObj: ObjectLattice.Elt, bObj: ObjectLattice.Elt) => f(aObj, bObj)})
+      if (map eq aMap) a else if (map eq bMap) b else Concrete(map)
+    case _ => Top()
+  }
   
   /* Getters */
   
@@ -24,12 +50,15 @@ object HeapLattice extends MapLattice[ObjectLabel, ObjectLattice.Elt](ObjectLatt
   def updateHeap(el: Elt, label: ObjectLabel, obj: ObjectLattice.Elt): Elt =
     update(el, label, obj)
 
-  def exportToFile(el: Map[ObjectLabel, ObjectLattice.Elt], fileName: String): Unit = exportToFile(Concrete(el), fileName)
-  def exportToFile(el: Elt, fileName: String): Unit = {
-    GraphvizExporter.export(generateGraphvizGraph(el), new PrintStream(fileName + ".heap.dot"))
-    Runtime.getRuntime().exec("dot -Tpng -o " + fileName + ".heap.png " + fileName + ".heap.dot")
+  def retainObjects(el: Elt, labels: Set[ObjectLabel]): Elt = el match {
+    case Concrete(map) => Concrete(map.keySet.foldLeft(HashTrieMap(map)) {(acc, label) => if (labels.contains(label)) acc else acc - label})
+    case _ => el
   }
 
+  def exportToFile(el: Map[ObjectLabel, ObjectLattice.Elt], fileName: String): Unit = exportToFile(Concrete(el), fileName)
+  def exportToFile(el: Elt, fileName: String): Unit =
+    GraphvizFiles.submit(fileName + ".heap.dot", generateGraphvizGraph(el))
+
   /* Dot export */
   def generateGraphvizGraph(el: Elt) : GraphvizExporter.Graph = {
     val emptyPair : (List[GraphvizExporter.Node],List[GraphvizExporter.Edge]) = (List(),List())
@@ -67,6 +96,8 @@ object HeapLattice extends MapLattice[ObjectLabel, ObjectLattice.Elt](ObjectLatt
           (GraphvizExporter.Node("{"+nodeLabel+"}",GraphvizExporter.SingleNodeId(labelIds.getOrElse(objectLabel, ""))) :: accNodes, edges ::: accEdges)
         })
       }
+      // A top heap (e.g. of an analysis that ran out of its budget) is one node, not an empty graph
+      case Top() => (List(GraphvizExporter.Node("Top")), List())
       case _ => emptyPair
     }
 
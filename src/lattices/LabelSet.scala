@@ -0,0 +1,170 @@
+package tapy.lattices
+
+import scala.collection.GenTraversableOnce
+import tapy.dfa.InternTable
+
+/**
+ * The dense ids of object labels (see ObjectLabel.id). Equal labels get the same id; a label
+ * is looked up by its class and fields, where the labels among the fields already compare by
+ * their ids and have their hash codes cached, so a lookup does not recurse through the bases,
+ * instances and functions.
+ *
+ * Equal labels share a token, which holds the id and the first of the labels. The tokens are
+ * interned in an InternTable, which only refers to them weakly, such that the table does not
+ * keep the labels, and thereby the CFGs, of earlier analyses (e.g. of the daemon) alive: a
+ * token is dropped when none of its labels is left, after which an equal label gets a fresh id.
+ */
+object ObjectLabelTable {
+
+  /** Equal to the tokens of the labels of the same class and fields. */
+  final class Token private[ObjectLabelTable] (val label: ObjectLabel, val id: Int, val hash: Int) {
+    override def hashCode: Int = hash
+
+    override def equals(other: Any): Boolean = other match {
+      case other: Token => (this eq other) || (label.getClass() == other.label.getClass() && label.productIterator.sameElements(other.label.productIterator))
+      case _ => false
+    }
+  }
+
+  private val tokens = new InternTable[Token]()
+  private val counter = new java.util.concurrent.atomic.AtomicInteger()
+
+  /** The token of label, i.e. its id along with its structural hash code. */
+  def getToken(label: ObjectLabel): Token = {
+    val hash = scala.runtime.ScalaRunTime._hashCode(label)
+    val token = tokens.lookup(new Token(label, -1, hash))
+    if (token != null) token else tokens.intern(new Token(label, counter.getAndIncrement(), hash))
+  }
+
+  /** The number of tokens with labels left, along with the ones that are about to be dropped. */
+  def size: Int = tokens.size
+}
+
+/**
+ * An immutable set of object labels, kept as the ids of the labels in increasing order along
+ * with the labels themselves. Unions, intersections and subset tests of two such sets merge
+ * the id arrays, and membership is a binary search, such that no label is hashed or compared
+ * field by field. ObjectLabelLattice converts the other sets of labels to this representation.
+ */
+final class LabelSet private (private val ids: Array[Int], private val labels: Array[ObjectLabel])
+  extends scala.collection.AbstractSet[ObjectLabel] with scala.collection.immutable.Set[ObjectLabel] {
+
+  override def size: Int = ids.length
+  override def isEmpty: Boolean = ids.length == 0
+
+  def contains(label: ObjectLabel): Boolean = java.util.Arrays.binarySearch(ids, label.id) >= 0
+
+  def iterator: Iterator[ObjectLabel] = labels.iterator
+
+  override def foreach[U](f: ObjectLabel => U): Unit = {
+    var i = 0
+    while (i < labels.length) {
+      f(labels(i))
+      i += 1
+    }
+  }
+
+  def +(label: ObjectLabel): LabelSet = union(LabelSet(label))
+
+  def -(label: ObjectLabel): LabelSet = {
+    val i = java.util.Arrays.binarySearch(ids, label.id)
+    if (i < 0) this
+    else new LabelSet(remove(ids, i), remove(labels, i))
+  }
+
+  override def ++(elems: GenTraversableOnce[ObjectLabel]): LabelSet = union(LabelSet(elems))
+
+  override def subsetOf(that: scala.collection.GenSet[ObjectLabel]): Boolean = that match {
+    case that: LabelSet =>
+      if (ids.length > that.ids.length)
+        false
+      else {
+        // Every id of this set must be met while going through the ids of that
+        var i = 0
+        var j = 0
+        while (i < ids.length && j < that.ids.length && ids.length - i <= that.ids.length - j) {
+          if (ids(i) == that.ids(j)) i += 1
+          else if (ids(i) < that.ids(j)) return false
+          j += 1
+        }
+        i == ids.length
+      }
+    case _ => super.subsetOf(that)
+  }
+
+  def union(that: LabelSet): LabelSet =
+    if (that.ids.length == 0 || (that eq this)) this
+    else if (ids.length == 0) that
+    else {
+      val resultIds = new Array[Int](ids.length + that.ids.length)
+      val resultLabels = new Array[ObjectLabel](ids.length + that.ids.length)
+      var i = 0
+      var j = 0
+      var k = 0
+      while (i < ids.length || j < that.ids.length) {
+        if (j == that.ids.length || (i < ids.length && ids(i) < that.ids(j))) {
+          resultIds(k) = ids(i); resultLabels(k) = labels(i); i += 1
+        } else if (i == ids.length || that.ids(j) < ids(i)) {
+          resultIds(k) = that.ids(j); resultLabels(k) = that.labels(j); j += 1
+        } else {
+          resultIds(k) = ids(i); resultLabels(k) = labels(i); i += 1; j += 1
+        }
+        k += 1
+      }
+      if (k == ids.length) this
+      else if (k == that.ids.length) that
+      else new LabelSet(java.util.Arrays.copyOf(resultIds, k), java.util.Arrays.copyOf(resultLabels, k))
+    }
+
+  def intersect(that: LabelSet): LabelSet = {
+    val resultIds = new Array[Int](math.min(ids.length, that.ids.length))
+    val resultLabels = new Array[ObjectLabel](resultIds.length)
+    var i = 0
+    var j = 0
+    var k = 0
+    while (i < ids.length && j < that.ids.length) {
+      if (ids(i) < that.ids(j)) i += 1
+      else if (that.ids(j) < ids(i)) j += 1
+      else {
+        resultIds(k) = ids(i); resultLabels(k) = labels(i); i += 1; j += 1; k += 1
+      }
+    }
+    if (k == ids.length) this
+    else if (k == that.ids.length) that
+    else new LabelSet(java.util.Arrays.copyOf(resultIds, k), java.util.Arrays.copyOf(resultLabels, k))
+  }
+
+  // Consistent with the hash codes of the other sets of labels
+  override lazy val hashCode: Int = scala.util.hashing.MurmurHash3.setHash(this)
+
+  override def equals(other: Any): Boolean = other match {
+    case other: LabelSet => (this eq other) || java.util.Arrays.equals(ids, other.ids)
+    case _ => super.equals(other)
+  }
+
+  private def remove[T](array: Array[T], i: Int)(implicit tag: scala.reflect.ClassTag[T]): Array[T] = {
+    val result = new Array[T](array.length - 1)
+    System.arraycopy(array, 0, result, 0, i)
+    System.arraycopy(array, i + 1, result, i, array.length - i - 1)
+    result
+  }
+}
+
+object LabelSet {
+  val empty: LabelSet = new LabelSet(new Array[Int](0), new Array[ObjectLabel](0))
+
+  def apply(label: ObjectLabel): LabelSet = new LabelSet(Array(label.id), Array(label))
+
+  def apply(labels: GenTraversableOnce[ObjectLabel]): LabelSet = labels match {
+    case labels: LabelSet => labels
+    case _ =>
+      val sorted = labels.toArray.sortBy(_.id)
+      if (sorted.isEmpty)
+        empty
+      else {
+        // Drop the duplicates
+        val distinct = sorted.zipWithIndex.collect({case (label, i) if i == 0 || sorted(i - 1).id != label.id => label})
+        new LabelSet(distinct.map(_.id), distinct)
+      }
+  }
+}
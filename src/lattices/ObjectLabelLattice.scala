@@ -8,7 +8,32 @@ import tapy.lattices._
 import tapy.dfa._
 import tapy.exceptions._
 
-abstract class ObjectLabel()
+/**
+ * Labels are compared and hashed all the time, as elements of sets and as keys of the heap,
+ * and the structural equality and hashing of the case classes would recurse through their
+ * bases, instances and functions. Instead, a label is given the token of its structure in
+ * ObjectLabelTable the first time it is needed, and equality uses the id of the token. The
+ * hash code is still the structural one, which is computed along with the id and then kept.
+ */
+abstract class ObjectLabel() extends Product {
+  // Null until it is looked up; also keeps the id of the label in the table
+  private var token: ObjectLabelTable.Token = null
+
+  private def lookup(): ObjectLabelTable.Token = {
+    if (token == null)
+      token = ObjectLabelTable.getToken(this)
+    token
+  }
+
+  def id: Int = lookup().id
+
+  override def hashCode(): Int = lookup().hash
+
+  override def equals(other: Any): Boolean = other match {
+    case other: ObjectLabel => (this eq other) || id == other.id
+    case _ => false
+  }
+}
 
 abstract class CallableObjectLabel() extends ObjectLabel()
 abstract class ClassObjectLabel() extends ObjectLabel()
@@ -59,7 +84,24 @@ case class OldStyleInstanceObjectLabel(classLabel: OldStyleClassObjectLabel, all
     ObjectLabelLattice.definatelyInheritsFrom(this, labels, node, solution)
 }
 
+/**
+ * The elements other than top are LabelSets, see fromSet.
+ */
 object ObjectLabelLattice extends PowerSubSetLattice[ObjectLabel] {
+  override def bottom: Elt = LabelSet.empty
+
+  /** The LabelSet of the labels of set, top if set is top. */
+  def fromSet(set: Set[ObjectLabel]): Elt = if (set == null) null else LabelSet(set)
+
+  override def compare(a: Elt, b: Elt): Boolean =
+    if (b == null) true else if (a == null) false else fromSet(a).subsetOf(fromSet(b))
+
+  override def leastUpperBound(a: Elt, b: Elt): Elt =
+    if (a == null || b == null) null else LabelSet(a).union(LabelSet(b))
+
+  override def greatestLowerBound(a: Elt, b: Elt): Elt =
+    if (a == null) fromSet(b) else if (b == null) fromSet(a) else LabelSet(a).intersect(LabelSet(b))
+
   def elementCompare(op: cmpopType, e1: Elt, e2: Elt) : BooleanLattice.Elt = op match {
     case cmpopType.Eq => if (e1.size == 1 && e2.size == 1) BooleanLattice.Concrete(e1 == e2) else BooleanLattice.top
     case cmpopType.NotEq => if (e1.size == 1 && e2.size == 1) BooleanLattice.Concrete(e1 != e2) else BooleanLattice.top
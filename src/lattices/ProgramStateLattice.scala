@@ -3,18 +3,150 @@ package tapy.lattices
 import tapy.dfa._
 import tapy.cfg._
 
-object ProgramStateLattice extends MapLattice[Node, StateLattice.Elt](StateLattice) {
-  
+/**
+  * Mutable storage of the state of each node, indexed by the index of the node.
+  * Nodes that have not been stored yet are thought to be mapped to bottom.
+  */
+class NodeStateTable {
+  private val states = new NodeTable[StateLattice.Elt]()
+
+  def size: Int = states.size
+
+  def contains(node: Node): Boolean = states.contains(node)
+
+  def get(node: Node): StateLattice.Elt = {
+    val state = states(node)
+    if (state == null) StateLattice.bottom else state
+  }
+
+  def set(node: Node, state: StateLattice.Elt): Unit =
+    states(node) = state
+
+  def toMap: Map[Node, StateLattice.Elt] = {
+    var acc = Map[Node, StateLattice.Elt]()
+    states.foreach {(node, state) => acc = acc + (node -> state)}
+    acc
+  }
+}
+
+sealed trait ProgramStateElt
+
+/**
+  * The program state maps each node to its state. Committed states live in a
+  * mutable NodeStateTable, while the states written during the evaluation of a
+  * single constraint are kept in an immutable overlay (pending), such that the
+  * transfer functions can still be written in a functional style.
+  *
+  * When the worklist has evaluated a constraint, commit() moves the overlay into
+  * the table and reports the nodes whose state changed. This way the worklist
+  * only compares the states of the nodes that were touched, instead of the
+  * solution as a whole.
+  *
+  * Note that committing mutates the table, which is shared with the solution that
+  * was passed to the constraint. Solutions must therefore not be kept across
+  * worklist iterations.
+  */
+object ProgramStateLattice extends Lattice[ProgramStateElt] {
+  type Elt = ProgramStateElt
+
+  case class Top() extends Elt
+  case class Concrete(table: NodeStateTable, pending: Map[Node, StateLattice.Elt]) extends Elt
+
+  def top: Elt = Top()
+  def bottom: Elt = Concrete(new NodeStateTable(), Map())
+
+  def compare(a: Elt, b: Elt): Boolean = (a, b) match {
+    case (Concrete(_, _), Concrete(_, _)) =>
+      val aStates = getStates(a)
+      val bStates = getStates(b)
+      (aStates.keySet ++ bStates.keySet).foldLeft(true) {(acc, node) =>
+        acc && StateLattice.compare(aStates.getOrElse(node, StateLattice.bottom), bStates.getOrElse(node, StateLattice.bottom))
+      }
+    case (Concrete(_, _), Top()) => false
+    case _ => true
+  }
+
+  def leastUpperBound(a: Elt, b: Elt): Elt = (a, b) match {
+    case (Concrete(_, _), Concrete(_, _)) =>
+      val aStates = getStates(a)
+      val bStates = getStates(b)
+      (aStates.keySet ++ bStates.keySet).foldLeft(bottom) {(acc, node) =>
+        update(acc, node, StateLattice.leastUpperBound(aStates.getOrElse(node, StateLattice.bottom), bStates.getOrElse(node, StateLattice.bottom)))
+      }
+    case _ => Top()
+  }
+
+  def greatestLowerBound(a: Elt, b: Elt): Elt = (a, b) match {
+    case (Concrete(_, _), Concrete(_, _)) =>
+      val aStates = getStates(a)
+      val bStates = getStates(b)
+      (aStates.keySet ++ bStates.keySet).foldLeft(bottom) {(acc, node) =>
+        update(acc, node, StateLattice.greatestLowerBound(aStates.getOrElse(node, StateLattice.bottom), bStates.getOrElse(node, StateLattice.bottom)))
+      }
+    case (Top(), _) => b
+    case (_, Top()) => a
+  }
+
+  def eltToString(el: Elt, indent: String): String = el match {
+    case Concrete(_, _) =>
+      getStates(el).foldLeft(indent + "Map\n") {(res, entry) =>
+        val (node, state) = entry
+        res + indent + "|   " + node + " =>\n" + StateLattice.eltToString(state, indent + "|   |   ")
+      }
+    case _ => s"${indent}TopMap\n"
+  }
+
   /* Getters */
-  
+
+  def get(el: Elt, node: Node): StateLattice.Elt = el match {
+    case Concrete(table, pending) => pending.getOrElse(node, table.get(node))
+    case _ => StateLattice.top
+  }
+
   def getState(el: ProgramStateLattice.Elt, node: Node): StateLattice.Elt =
     get(el, node)
-  
+
+  def getStates(el: ProgramStateLattice.Elt): Map[Node, StateLattice.Elt] = el match {
+    case Concrete(table, pending) => table.toMap ++ pending
+    case _ => Map()
+  }
+
   def getVariableObjects(el: ProgramStateLattice.Elt, node: Node): Set[ObjectLabel] =
     StateLattice.getVariableObjects(getState(el, node))
-    
+
   /* Setters */
-  
+
+  def update(el: Elt, node: Node, state: StateLattice.Elt): Elt = el match {
+    case Concrete(table, pending) => Concrete(table, pending + (node -> state))
+    case _ => top
+  }
+
+  /** Drops the pending state of node, such that it is not committed. */
+  def discard(el: Elt, node: Node): Elt = el match {
+    case Concrete(table, pending) => Concrete(table, pending - node)
+    case _ => el
+  }
+
   def setExecutionContext(el: ProgramStateLattice.Elt, node: Node, executionContext: ExecutionContextLattice.Elt): ProgramStateLattice.Elt =
     update(el, node, StateLattice.setExecutionContext(getState(el, node), executionContext))
-}
\ No newline at end of file
+
+  /* Commit */
+
+  /**
+    * Writes the pending states into the table, and returns the nodes whose
+    * state differs from the previously committed state. As with the map based
+    * representation, storing a state for a node for the first time is a change.
+    */
+  def commit(el: Elt): (Elt, Set[Node]) = el match {
+    case Concrete(table, pending) =>
+      val changed = pending.foldLeft(Set[Node]()) {(acc, entry) =>
+        val (node, state) = entry
+        if (!table.contains(node) || table.get(node) != state) {
+          table.set(node, state)
+          acc + node
+        } else acc
+      }
+      (Concrete(table, Map()), changed)
+    case _ => (el, Set())
+  }
+}
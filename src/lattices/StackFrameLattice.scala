@@ -17,6 +17,11 @@ object StackFrameLattice extends MapLattice[Int, ValueLattice.Elt](ValueLattice)
 
   /* Updaters */
     
+  def retainRegisters(el: Elt, p: Int => Boolean): Elt = el match {
+    case Concrete(map) => if (map.keys.forall(p)) el else Concrete(map.filter {(entry) => p(entry._1)})
+    case _ => el
+  }
+
   def updateRegisterValue(el: Elt, register: Int, value: ValueLattice.Elt, strong: Boolean = false): Elt = {
     if (strong)
       update(el, register, value)
@@ -21,6 +21,9 @@ object StackLattice extends ProductLattice(StackFrameLattice, ExecutionContextLa
   
   /* Setters */
     
+  def setStackFrame(el: Elt, stackFrame: StackFrameLattice.Elt): Elt =
+    (stackFrame, getExecutionContext(el))
+  
   def setExecutionContext(el: Elt, executionContexts: ExecutionContextLattice.Elt = ExecutionContextLattice.bottom): Elt =
     (getStackFrame(el), executionContexts)
   
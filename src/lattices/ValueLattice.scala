@@ -6,29 +6,185 @@ import org.python.antlr.ast.cmpopType
 import tapy.cfg._
 import tapy.typeanalysis._
 
-object ValueLattice
-extends ProductLattice(
-  UndefinedLattice, 
-  new ProductLattice(
-    NoneLattice, 
-    new ProductLattice(
-      NotImplementedLattice, 
-      new ProductLattice(
-        EllipsisLattice, 
-        new ProductLattice(
-          BooleanLattice, 
-          new ProductLattice(
-            IntegerLattice, 
-            new ProductLattice(
-              FloatLattice, 
-              new ProductLattice(
-                LongLattice, 
-                new ProductLattice(
-                  ComplexLattice, 
-                  new ProductLattice(
-                    StringLattice,
-                    ObjectLabelLattice)))))))))) with Logger {
-  
+/**
+  * An element of the ValueLattice. The state of each of the sub-lattices (bottom, concrete
+  * or abstract) is packed into the bits word, see ValueLattice. The payloads of concrete
+  * integers, floats, longs, complex numbers and strings, and the object labels, live in
+  * side fields that are only set when present (a concrete boolean lives in bits as well).
+  *
+  * Elements are hash-consed by ValueLattice, hence two equal elements are the same
+  * instance, and equality is (almost always) a reference check.
+  */
+final class ValueElt(val bits: Int,
+                     val integer: Int,
+                     val float: Double,
+                     val long: java.math.BigInteger,
+                     val complex: ComplexLattice.Elt,
+                     val string: String,
+                     val objectLabels: ObjectLabelLattice.Elt) {
+
+  def fields: (UndefinedLattice.Elt, NoneLattice.Elt, NotImplementedLattice.Elt, EllipsisLattice.Elt, BooleanLattice.Elt, IntegerLattice.Elt, FloatLattice.Elt, LongLattice.Elt, ComplexLattice.Elt, StringLattice.Elt, ObjectLabelLattice.Elt) =
+    ValueLattice.unpackElement(this)
+
+  override val hashCode: Int = {
+    var h = 31 * bits + integer
+    h = 31 * h + java.lang.Double.hashCode(float)
+    h = 31 * h + (if (long == null) 0 else long.hashCode())
+    h = 31 * h + (if (complex == null) 0 else complex.hashCode())
+    h = 31 * h + (if (string == null) 0 else string.hashCode())
+    31 * h + (if (objectLabels == null) 0 else objectLabels.hashCode())
+  }
+
+  override def equals(other: Any): Boolean = other match {
+    case other: ValueElt =>
+      (this eq other) ||
+      (hashCode == other.hashCode && bits == other.bits && integer == other.integer &&
+       java.lang.Double.doubleToLongBits(float) == java.lang.Double.doubleToLongBits(other.float) &&
+       long == other.long && complex == other.complex && string == other.string && objectLabels == other.objectLabels)
+    case _ => false
+  }
+
+  override def toString(): String = ValueLattice.toString(this)
+}
+
+/**
+  * The product of the Undefined, None, NotImplemented, Ellipsis, Boolean, Integer, Float,
+  * Long, Complex, String and ObjectLabel lattices.
+  *
+  * Each sub-lattice has two bits in ValueElt.bits: 00 (bottom), 01 (concrete) or 11
+  * (abstract). For the ObjectLabel lattice, 01 is a non-empty set and 11 is top. A complex
+  * number is a pair of floats, so it is either bottom or 01 with the pair as payload. This
+  * way, tests like elementIsOnlyNone are a mask, and joins of values that do not share a
+  * concrete sub-lattice are a bitwise or.
+  */
+object ValueLattice extends Lattice[ValueElt] with Logger {
+  type Elt = ValueElt
+
+  private final val UNDEFINED = 0
+  private final val NONE = 2
+  private final val NOT_IMPLEMENTED = 4
+  private final val ELLIPSIS = 6
+  private final val BOOLEAN = 8
+  private final val INTEGER = 10
+  private final val FLOAT = 12
+  private final val LONG = 14
+  private final val COMPLEX = 16
+  private final val STRING = 18
+  private final val OBJECT_LABELS = 20
+
+  private final val CONCRETE = 1
+  private final val ABSTRACT = 3
+
+  private final val BOOLEAN_VALUE = 1 << 30
+  private final val LOW_BITS = 0x155555
+  private final val NUMBERS = (3 << BOOLEAN) | (3 << INTEGER) | (3 << FLOAT) | (3 << LONG) | (3 << COMPLEX)
+  private final val WIDENED = (1 << INTEGER) | (1 << FLOAT) | (1 << LONG) | (1 << STRING)
+
+  private def state(bits: Int, kind: Int): Int = (bits >>> kind) & 3
+  private def only(el: Elt, kinds: Int): Boolean = (el.bits & ~(kinds | BOOLEAN_VALUE)) == 0 && (el.bits & kinds) != 0
+  private def concretes(bits: Int): Int = bits & LOW_BITS & ~(bits >>> 1)
+
+  private val values = new InternTable[ValueElt]()
+  private val leaves = new InternTable[AnyRef]()
+  private val lubCache = new BoundedCache[(ValueElt, ValueElt), ValueElt](1 << 14)
+
+  private val bottomElt = values.intern(new ValueElt(0, 0, 0, null, null, null, ObjectLabelLattice.bottom))
+  private lazy val topElt = packElement(UndefinedLattice.top, NoneLattice.top, NotImplementedLattice.top, EllipsisLattice.top, BooleanLattice.top,
+                                        IntegerLattice.top, FloatLattice.top, LongLattice.top, ComplexLattice.top, StringLattice.top, ObjectLabelLattice.top)
+
+  def top: Elt = topElt
+  def bottom: Elt = bottomElt
+
+  /**
+    * Whether a is less than or equal to b.
+    */
+  def compare(a: Elt, b: Elt): Boolean =
+    (a eq b) ||
+    ((a.bits & ~b.bits & ~BOOLEAN_VALUE) == 0 && {
+      val both = concretes(a.bits) & concretes(b.bits)
+      ((both & (1 << BOOLEAN)) == 0 || (a.bits & BOOLEAN_VALUE) == (b.bits & BOOLEAN_VALUE)) &&
+      ((both & (1 << INTEGER)) == 0 || a.integer == b.integer) &&
+      ((both & (1 << FLOAT)) == 0 || java.lang.Double.valueOf(a.float).equals(b.float)) &&
+      ((both & (1 << LONG)) == 0 || a.long == b.long) &&
+      ((both & (1 << COMPLEX)) == 0 || ComplexLattice.leastUpperBound(a.complex, b.complex) == b.complex) &&
+      ((both & (1 << STRING)) == 0 || a.string == b.string) &&
+      ((both & (1 << OBJECT_LABELS)) == 0 || a.objectLabels.subsetOf(b.objectLabels))
+    })
+
+  /**
+    * Joins are memoized, since the same pairs of values are joined over and over again
+    * when the analysis iterates to a fixpoint.
+    */
+  def leastUpperBound(a: Elt, b: Elt): Elt =
+    if ((a eq b) || (b eq bottomElt)) a
+    else if (a eq bottomElt) b
+    else
+      lubCache.getOrElseUpdate((a, b), {
+        // Unless a sub-lattice is concrete in both, no payloads have to be joined
+        val both = concretes(a.bits) & concretes(b.bits)
+        var bits = a.bits | b.bits
+        if ((both & (1 << BOOLEAN)) != 0 && (a.bits & BOOLEAN_VALUE) != (b.bits & BOOLEAN_VALUE)) bits = (bits | (ABSTRACT << BOOLEAN)) & ~BOOLEAN_VALUE
+        if ((both & (1 << INTEGER)) != 0 && a.integer != b.integer) bits = bits | (ABSTRACT << INTEGER)
+        if ((both & (1 << FLOAT)) != 0 && !java.lang.Double.valueOf(a.float).equals(b.float)) bits = bits | (ABSTRACT << FLOAT)
+        if ((both & (1 << LONG)) != 0 && a.long != b.long) bits = bits | (ABSTRACT << LONG)
+        if ((both & (1 << STRING)) != 0 && a.string != b.string) bits = bits | (ABSTRACT << STRING)
+        join(a, b, bits)
+      })
+
+  /* Builds the join of a and b, given the states of the result */
+  private def join(a: Elt, b: Elt, states: Int): Elt = {
+    val bits = if (state(states, BOOLEAN) == CONCRETE) states else states & ~BOOLEAN_VALUE
+    def pick[T](kind: Int, fa: T, fb: T, none: T): T =
+      if (state(bits, kind) != CONCRETE) none else if (state(a.bits, kind) == CONCRETE) fa else fb
+
+    val complex =
+      if (state(a.bits, COMPLEX) == CONCRETE && state(b.bits, COMPLEX) == CONCRETE) ComplexLattice.leastUpperBound(a.complex, b.complex)
+      else pick(COMPLEX, a.complex, b.complex, null)
+    val objectLabels =
+      if (state(bits, OBJECT_LABELS) == ABSTRACT) ObjectLabelLattice.top
+      else ObjectLabelLattice.leastUpperBound(a.objectLabels, b.objectLabels)
+
+    intern(bits, pick(INTEGER, a.integer, b.integer, 0), pick(FLOAT, a.float, b.float, 0), pick(LONG, a.long, b.long, null),
+           complex, pick(STRING, a.string, b.string, null), objectLabels)
+  }
+
+  /**
+    * Integers, floats, longs and strings that become concrete in the join, i.e. that are
+    * still changing, go to abstract. Their lattices are flat (bottom, concrete, abstract), so
+    * a join reaches abstract within two steps anyway, and this only trades precision for a
+    * step. It is the hook for unbounded lattices of these kinds, such as integer ranges, for
+    * which it is needed to terminate; until then, widening is off by default (see
+    * Worklist.DEFAULT_WIDEN_AFTER).
+    */
+  override def widen(a: Elt, b: Elt): Elt = {
+    val joined = leastUpperBound(a, b)
+    val unstable = concretes(joined.bits) & ~concretes(a.bits) & WIDENED
+    if (unstable == 0)
+      joined
+    else
+      List(INTEGER, FLOAT, LONG, STRING).foldLeft(joined) {(acc, kind) =>
+        if ((unstable & (1 << kind)) == 0) acc else setComponent(acc, kind, (kind: @unchecked) match {
+          case INTEGER => IntegerLattice.top
+          case FLOAT => FloatLattice.top
+          case LONG => LongLattice.top
+          case STRING => StringLattice.top
+        })
+      }
+  }
+
+  def greatestLowerBound(a: Elt, b: Elt): Elt =
+    if (a eq b) a
+    else {
+      val (aUndefined, aNone, aNotImplemented, aEllipsis, aBoolean, aInteger, aFloat, aLong, aComplex, aString, aObjectLabels) = unpackElement(a)
+      val (bUndefined, bNone, bNotImplemented, bEllipsis, bBoolean, bInteger, bFloat, bLong, bComplex, bString, bObjectLabels) = unpackElement(b)
+      packElement(UndefinedLattice.greatestLowerBound(aUndefined, bUndefined), NoneLattice.greatestLowerBound(aNone, bNone),
+                  NotImplementedLattice.greatestLowerBound(aNotImplemented, bNotImplemented), EllipsisLattice.greatestLowerBound(aEllipsis, bEllipsis),
+                  BooleanLattice.greatestLowerBound(aBoolean, bBoolean), IntegerLattice.greatestLowerBound(aInteger, bInteger),
+                  FloatLattice.greatestLowerBound(aFloat, bFloat), LongLattice.greatestLowerBound(aLong, bLong),
+                  ComplexLattice.greatestLowerBound(aComplex, bComplex), StringLattice.greatestLowerBound(aString, bString),
+                  ObjectLabelLattice.greatestLowerBound(aObjectLabels, bObjectLabels))
+    }
+
   def undefined = setUndefined()
   
   /* Element utility functions */
@@ -111,114 +267,55 @@ extends ProductLattice(
     }
   }
   
-  def splitElement(el: Elt): Set[Elt] = {
-    var result = Set[Elt]()
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    if (undefined != UndefinedLattice.bottom) result = result + setUndefined(undefined)
-    if (none != NoneLattice.bottom) result = result + setNone(none)
-    if (notImplemented != NotImplementedLattice.bottom) result = result + setNotImplemented(notImplemented)
-    if (ellipsis != EllipsisLattice.bottom) result = result + setEllipsis(ellipsis)
-    if (boolean != BooleanLattice.bottom) result = result + setBooleanElt(boolean)
-    if (integer != IntegerLattice.bottom) result = result + setIntegerElt(integer)
-    if (float != FloatLattice.bottom) result = result + setFloatElt(float)
-    if (long != LongLattice.bottom) result = result + setLongElt(long)
-    if (complex != ComplexLattice.bottom) result = result + setComplexElt(complex)
-    if (string != StringLattice.bottom) result = result + setStringElt(string)
-    if (objectLabels != ObjectLabelLattice.bottom) result = result + setObjectLabels(objectLabels)
-    result
-  }
+  def splitElement(el: Elt): Set[Elt] =
+    List(UNDEFINED, NONE, NOT_IMPLEMENTED, ELLIPSIS, BOOLEAN, INTEGER, FLOAT, LONG, COMPLEX, STRING, OBJECT_LABELS).foldLeft(Set[Elt]()) {(acc, kind) =>
+      if (state(el.bits, kind) == 0)
+        acc
+      else {
+        val mask = if (kind == BOOLEAN) (3 << kind) | BOOLEAN_VALUE else 3 << kind
+        acc + intern(el.bits & mask,
+                     if (kind == INTEGER) el.integer else 0,
+                     if (kind == FLOAT) el.float else 0,
+                     if (kind == LONG) el.long else null,
+                     if (kind == COMPLEX) el.complex else null,
+                     if (kind == STRING) el.string else null,
+                     if (kind == OBJECT_LABELS) el.objectLabels else ObjectLabelLattice.bottom)
+      }
+    }
 
   /**
     * Element is only tests
     */
   
   def elementMaybeUndefined(el: Elt): Boolean = {
-    return getUndefined(el) == UndefinedLattice.top
+    return state(el.bits, UNDEFINED) != 0
   }
   
-  def elementIsOnlyNone(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none != NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom &&
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyNone(el: Elt): Boolean = only(el, 3 << NONE)
 
-  def elementIsOnlyNotImplemented(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented != NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom &&
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyNotImplemented(el: Elt): Boolean = only(el, 3 << NOT_IMPLEMENTED)
 
-  def elementIsOnlyEllipsis(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis != EllipsisLattice.bottom &&
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyEllipsis(el: Elt): Boolean = only(el, 3 << ELLIPSIS)
   
-  def elementIsOnlyNumber(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-     (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-      string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom) && (
-      boolean != BooleanLattice.bottom || integer != IntegerLattice.bottom || float != FloatLattice.bottom || long != LongLattice.bottom || complex != ComplexLattice.bottom)
-  }
+  def elementIsOnlyNumber(el: Elt): Boolean = only(el, NUMBERS)
 
-  def elementIsOnlyBoolean(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom &&
-     boolean != BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyBoolean(el: Elt): Boolean = only(el, 3 << BOOLEAN)
 
-  def elementIsOnlyInteger(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom &&
-     boolean == BooleanLattice.bottom && integer != IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom &&
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyInteger(el: Elt): Boolean = only(el, 3 << INTEGER)
 
-  def elementIsOnlyFloat(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom &&
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float != FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyFloat(el: Elt): Boolean = only(el, 3 << FLOAT)
 
-  def elementIsOnlyLong(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long != LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyLong(el: Elt): Boolean = only(el, 3 << LONG)
 
-  def elementIsOnlyComplex(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex != ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyComplex(el: Elt): Boolean = only(el, 3 << COMPLEX)
 
-  def elementIsOnlyString(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string != StringLattice.bottom && objectLabels == ObjectLabelLattice.bottom)
-  }
+  def elementIsOnlyString(el: Elt): Boolean = only(el, 3 << STRING)
 
   def elementIsOnlyObjectLabels[T <: AnyRef: Manifest](el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     string == StringLattice.bottom && objectLabels != ObjectLabelLattice.bottom) && (objectLabels.foldLeft(true) {(acc, objectLabel) => acc && manifest[T].erasure.isInstance(objectLabel)})
+    only(el, 3 << OBJECT_LABELS) && (el.objectLabels.foldLeft(true) {(acc, objectLabel) => acc && manifest[T].erasure.isInstance(objectLabel)})
   }
 
-  def elementIsSubsciptable(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    (undefined == UndefinedLattice.bottom && none == NoneLattice.bottom && notImplemented == NotImplementedLattice.bottom && ellipsis == EllipsisLattice.bottom && 
-     boolean == BooleanLattice.bottom && integer == IntegerLattice.bottom && float == FloatLattice.bottom && long == LongLattice.bottom && complex == ComplexLattice.bottom && 
-     (string != StringLattice.bottom || objectLabels != ObjectLabelLattice.bottom))
-  }
+  def elementIsSubsciptable(el: Elt): Boolean = only(el, (3 << STRING) | (3 << OBJECT_LABELS))
 
   def elementIsDefinatelyTruthValue(el: Elt, which: Boolean): Boolean = {
     splitElement(el).foldLeft(true) {(acc, el) =>
@@ -313,18 +410,7 @@ extends ProductLattice(
   }
 
   def elementIsUniqueObjectLabel(el: Elt): Boolean = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    return (undefined == UndefinedLattice.bottom &&
-            none == NoneLattice.bottom &&
-            notImplemented == NotImplementedLattice.bottom &&
-            ellipsis == EllipsisLattice.bottom &&
-            boolean == BooleanLattice.bottom &&
-            string == StringLattice.bottom &&
-            objectLabels.size == 1 &&
-            integer == IntegerLattice.bottom &&
-            float == FloatLattice.bottom &&
-            long == LongLattice.bottom &&
-            complex == ComplexLattice.bottom)
+    return only(el, 3 << OBJECT_LABELS) && state(el.bits, OBJECT_LABELS) == CONCRETE && el.objectLabels.size == 1
   }
 
   /**
@@ -382,123 +468,104 @@ extends ProductLattice(
     * Setters
     */
   
-  def setUndefined(undefined: UndefinedLattice.Elt = UndefinedLattice.top, el: Elt = bottom): Elt = {
-    val (_, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setUndefined(undefined: UndefinedLattice.Elt = UndefinedLattice.top, el: Elt = bottom): Elt = setComponent(el, UNDEFINED, undefined)
   
-  def setNone(none: NoneLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, _, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setNone(none: NoneLattice.Elt, el: Elt = bottom): Elt = setComponent(el, NONE, none)
 
-  def setNotImplemented(notImplemented: NotImplementedLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, _, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setNotImplemented(notImplemented: NotImplementedLattice.Elt, el: Elt = bottom): Elt = setComponent(el, NOT_IMPLEMENTED, notImplemented)
 
-  def setEllipsis(ellipsis: EllipsisLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, _, boolean, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setEllipsis(ellipsis: EllipsisLattice.Elt, el: Elt = bottom): Elt = setComponent(el, ELLIPSIS, ellipsis)
   
   def setBoolean(boolean: Boolean, el: Elt = bottom): Elt = setBooleanElt(BooleanLattice.Concrete(boolean), el)
-  def setBooleanElt(boolean: BooleanLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, _, integer, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setBooleanElt(boolean: BooleanLattice.Elt, el: Elt = bottom): Elt = setComponent(el, BOOLEAN, boolean)
   
   def setInteger(integer: Int, el: Elt = bottom): Elt = setIntegerElt(IntegerLattice.Concrete(integer), el)
-  def setIntegerElt(integer: IntegerLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, _, float, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setIntegerElt(integer: IntegerLattice.Elt, el: Elt = bottom): Elt = setComponent(el, INTEGER, integer)
   
   def setFloat(float: Double, el: Elt = bottom): Elt = setFloatElt(FloatLattice.Concrete(float), el)
-  def setFloatElt(float: FloatLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, _, long, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setFloatElt(float: FloatLattice.Elt, el: Elt = bottom): Elt = setComponent(el, FLOAT, float)
   
   def setLong(long: java.math.BigInteger, el: Elt = bottom): Elt = setLongElt(LongLattice.Concrete(long), el)
-  def setLongElt(long: LongLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, _, complex, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setLongElt(long: LongLattice.Elt, el: Elt = bottom): Elt = setComponent(el, LONG, long)
   
   def setComplex(real: Double, imag: Double, el: Elt = bottom): Elt = setComplexElt((FloatLattice.Concrete(real), FloatLattice.Concrete(imag)), el)
-  def setComplexElt(complex: ComplexLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, _, string, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setComplexElt(complex: ComplexLattice.Elt, el: Elt = bottom): Elt = setComponent(el, COMPLEX, complex)
   
   def setString(string: String, el: Elt = bottom): Elt = setStringElt(StringLattice.Concrete(string), el)
-  def setStringElt(string: StringLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, _, objectLabels) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setStringElt(string: StringLattice.Elt, el: Elt = bottom): Elt = setComponent(el, STRING, string)
 
-  def setObjectLabels(objectLabels: ObjectLabelLattice.Elt, el: Elt = bottom): Elt = {
-    val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, _) = unpackElement(el)
-    ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
-  }
+  def setObjectLabels(objectLabels: ObjectLabelLattice.Elt, el: Elt = bottom): Elt = setComponent(el, OBJECT_LABELS, objectLabels)
 
   /* Getters */
+
+  private val undefinedBottom = UndefinedLattice.bottom
+  private val undefinedTop = UndefinedLattice.top
+  private val noneBottom = NoneLattice.bottom
+  private val noneTop = NoneLattice.top
+  private val notImplementedBottom = NotImplementedLattice.bottom
+  private val notImplementedTop = NotImplementedLattice.top
+  private val ellipsisBottom = EllipsisLattice.bottom
+  private val ellipsisTop = EllipsisLattice.top
+  private val booleanBottom = BooleanLattice.bottom
+  private val booleanTop = BooleanLattice.top
+  private val booleanTrue = BooleanLattice.Concrete(true)
+  private val booleanFalse = BooleanLattice.Concrete(false)
+  private val integerBottom = IntegerLattice.bottom
+  private val integerTop = IntegerLattice.top
+  private val floatBottom = FloatLattice.bottom
+  private val floatTop = FloatLattice.top
+  private val longBottom = LongLattice.bottom
+  private val longTop = LongLattice.top
+  private val complexBottom = ComplexLattice.bottom
+  private val stringBottom = StringLattice.bottom
+  private val stringTop = StringLattice.top
   
-  def getUndefined(v: Elt) : UndefinedLattice.Elt = {
-    val (undefined, _, _, _, _, _, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    undefined
-  }
+  def getUndefined(v: Elt) : UndefinedLattice.Elt =
+    if (state(v.bits, UNDEFINED) == 0) undefinedBottom else undefinedTop
 
-  def getNone(v: Elt) : NoneLattice.Elt = {
-    val (_, none, _, _, _, _, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    none
-  }
+  def getNone(v: Elt) : NoneLattice.Elt =
+    if (state(v.bits, NONE) == 0) noneBottom else noneTop
 
-  def getNotImplemented(v: Elt) : NotImplementedLattice.Elt = {
-    val (_, _, notImplemented, _, _, _, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    notImplemented
-  }
+  def getNotImplemented(v: Elt) : NotImplementedLattice.Elt =
+    if (state(v.bits, NOT_IMPLEMENTED) == 0) notImplementedBottom else notImplementedTop
 
-  def getEllipsis(v: Elt) : EllipsisLattice.Elt = {
-    val (_, _, _, ellipsis, _, _, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    ellipsis
-  }
+  def getEllipsis(v: Elt) : EllipsisLattice.Elt =
+    if (state(v.bits, ELLIPSIS) == 0) ellipsisBottom else ellipsisTop
 
-  def getBoolean(v: Elt): BooleanLattice.Elt = {
-    val (_, _, _, _, boolean, _, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    boolean
+  def getBoolean(v: Elt): BooleanLattice.Elt = state(v.bits, BOOLEAN) match {
+    case 0 => booleanBottom
+    case CONCRETE => if ((v.bits & BOOLEAN_VALUE) != 0) booleanTrue else booleanFalse
+    case _ => booleanTop
   }
 
-  def getInteger(v: Elt): IntegerLattice.Elt = {
-    val (_, _, _, _, _, integer, _, _, _, _, _) = ValueLattice.unpackElement(v)
-    integer
+  def getInteger(v: Elt): IntegerLattice.Elt = state(v.bits, INTEGER) match {
+    case 0 => integerBottom
+    case CONCRETE => IntegerLattice.Concrete(v.integer)
+    case _ => integerTop
   }
 
-  def getFloat(v: Elt): FloatLattice.Elt = {
-    val (_, _, _, _, _, _, float, _, _, _, _) = ValueLattice.unpackElement(v)
-    float
+  def getFloat(v: Elt): FloatLattice.Elt = state(v.bits, FLOAT) match {
+    case 0 => floatBottom
+    case CONCRETE => FloatLattice.Concrete(v.float)
+    case _ => floatTop
   }
 
-  def getLong(v: Elt): LongLattice.Elt = {
-    val (_, _, _, _, _, _, _, long, _, _, _) = ValueLattice.unpackElement(v)
-    long
+  def getLong(v: Elt): LongLattice.Elt = state(v.bits, LONG) match {
+    case 0 => longBottom
+    case CONCRETE => LongLattice.Concrete(v.long)
+    case _ => longTop
   }
 
-  def getComplex(v: Elt): ComplexLattice.Elt = {
-    val (_, _, _, _, _, _, _, _, complex, _, _) = ValueLattice.unpackElement(v)
-    complex
-  }
+  def getComplex(v: Elt): ComplexLattice.Elt =
+    if (state(v.bits, COMPLEX) == 0) complexBottom else v.complex
 
-  def getString(v: Elt): StringLattice.Elt = {
-    val (_, _, _, _, _, _, _, _, _, string, _) = ValueLattice.unpackElement(v)
-    string
+  def getString(v: Elt): StringLattice.Elt = state(v.bits, STRING) match {
+    case 0 => stringBottom
+    case CONCRETE => StringLattice.Concrete(v.string)
+    case _ => stringTop
   }
   
-  def getObjectLabels(v: Elt): ObjectLabelLattice.Elt = {
-    val (_, _, _, _, _, _, _, _, _, _, objectLabels) = ValueLattice.unpackElement(v)
-    objectLabels
-  }
+  def getObjectLabels(v: Elt): ObjectLabelLattice.Elt = v.objectLabels
   
   /**
     * Throws an UnexpectedValueException if the value given is not exactly one object label.
@@ -529,11 +596,75 @@ extends ProductLattice(
                   complex: ComplexLattice.Elt = ComplexLattice.bottom, 
                   string: StringLattice.Elt = StringLattice.bottom, 
                   objectLabels: ObjectLabelLattice.Elt = ObjectLabelLattice.bottom): Elt = {
-    return (undefined, (none, (notImplemented, (ellipsis, (boolean, (integer, (float, (long, (complex, (string, objectLabels))))))))))
+    List((UNDEFINED, undefined), (NONE, none), (NOT_IMPLEMENTED, notImplemented), (ELLIPSIS, ellipsis), (BOOLEAN, boolean), (INTEGER, integer),
+         (FLOAT, float), (LONG, long), (COMPLEX, complex), (STRING, string), (OBJECT_LABELS, objectLabels)).foldLeft(bottomElt) {(acc, component) =>
+      val (kind, leaf) = component
+      setComponent(acc, kind, leaf)
+    }
   }
 
   def unpackElement(el: Elt): (UndefinedLattice.Elt, NoneLattice.Elt, NotImplementedLattice.Elt, EllipsisLattice.Elt, BooleanLattice.Elt, IntegerLattice.Elt, FloatLattice.Elt, LongLattice.Elt, ComplexLattice.Elt, StringLattice.Elt, ObjectLabelLattice.Elt) = {
-    val (undefined, (none, (notImplemented, (ellipsis, (boolean, (integer, (float, (long, (complex, (string, objectLabels)))))))))) = el
-    return (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
+    (getUndefined(el), getNone(el), getNotImplemented(el), getEllipsis(el), getBoolean(el), getInteger(el), getFloat(el), getLong(el), getComplex(el), getString(el), getObjectLabels(el))
+  }
+
+  /* Encoding */
+
+  /**
+    * Returns el with the given component (an element of the sub-lattice for kind) replaced.
+    */
+  private def setComponent(el: Elt, kind: Int, component: Any): Elt = {
+    val (componentState, payload): (Int, Any) = component match {
+      case UndefinedLattice.Undefined() | NoneLattice.None() | NotImplementedLattice.NotImplemented() | EllipsisLattice.Ellipsis() => (ABSTRACT, null)
+      case BooleanLattice.Abstract() | IntegerLattice.Abstract() | FloatLattice.Abstract() | LongLattice.Abstract() | StringLattice.Abstract() => (ABSTRACT, null)
+      case BooleanLattice.Concrete(b) => (CONCRETE, b)
+      case IntegerLattice.Concrete(i) => (CONCRETE, i)
+      case FloatLattice.Concrete(f) => (CONCRETE, f)
+      case LongLattice.Concrete(l) => (CONCRETE, l)
+      case StringLattice.Concrete(s) => (CONCRETE, s)
+      case (FloatLattice.Bottom(), FloatLattice.Bottom()) => (0, null)
+      case complex: Tuple2[_, _] => (CONCRETE, complex)
+      case null => (ABSTRACT, null) // The top of the ObjectLabelLattice
+      case labels: Set[_] => if (labels.isEmpty) (0, null) else (CONCRETE, ObjectLabelLattice.fromSet(labels.asInstanceOf[Set[ObjectLabel]]))
+      case _ => (0, null) // The bottom of the other lattices
+    }
+
+    val mask = if (kind == BOOLEAN) (3 << kind) | BOOLEAN_VALUE else 3 << kind
+    val value = if (kind == BOOLEAN && payload == true) BOOLEAN_VALUE else 0
+    val isConcrete = componentState == CONCRETE
+
+    intern((el.bits & ~mask) | (componentState << kind) | value,
+           if (kind != INTEGER) el.integer else if (isConcrete) payload.asInstanceOf[Int] else 0,
+           if (kind != FLOAT) el.float else if (isConcrete) payload.asInstanceOf[Double] else 0,
+           if (kind != LONG) el.long else if (isConcrete) payload.asInstanceOf[java.math.BigInteger] else null,
+           if (kind != COMPLEX) el.complex else if (isConcrete) payload.asInstanceOf[ComplexLattice.Elt] else null,
+           if (kind != STRING) el.string else if (isConcrete) payload.asInstanceOf[String] else null,
+           if (kind != OBJECT_LABELS) el.objectLabels else if (componentState == 0) ObjectLabelLattice.bottom else payload.asInstanceOf[ObjectLabelLattice.Elt])
+  }
+
+  /**
+    * Returns the canonical element with the given representation. The payloads of new
+    * elements are shared with equal payloads of other elements.
+    */
+  private def intern(bits: Int, integer: Int, float: Double, long: java.math.BigInteger, complex: ComplexLattice.Elt, string: String, objectLabels: ObjectLabelLattice.Elt): Elt = {
+    val canonical = values.lookup(new ValueElt(bits, integer, float, long, complex, string, objectLabels))
+    if (canonical == null)
+      values.intern(new ValueElt(bits, integer, float, internLeaf(long), internLeaf(complex), internLeaf(string), internLeaf(objectLabels)))
+    else
+      canonical
+  }
+
+  private def internLeaf[T](leaf: T): T =
+    if (leaf == null) leaf else leaves.intern(leaf.asInstanceOf[AnyRef]).asInstanceOf[T]
+
+  /**
+    * Drops the memoized joins of the current thread and the canonical elements, e.g. between
+    * the analyses of the daemon. The joins would otherwise keep the values, and thereby the
+    * labels and nodes, of an earlier analysis alive.
+    */
+  def clearCaches(): Unit = {
+    lubCache.clear()
+    values.clear()
+    leaves.clear()
+    values.intern(bottomElt)
   }
-}
\ No newline at end of file
+}
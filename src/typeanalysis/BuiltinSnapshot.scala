@@ -0,0 +1,446 @@
+package tapy.typeanalysis
+
+import java.io._
+import java.nio.BufferUnderflowException
+import java.nio.file.{Files, Path}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import tapy.cfg._
+import tapy.dfa._
+import tapy.lattices._
+import scala.collection.mutable.{ArrayBuffer, HashMap}
+import scala.collection.JavaConverters._
+
+/**
+ * The analyzed __builtin__ module: its CFG (including the nodes that were spliced into it
+ * during the analysis), the states that flow into its exit nodes, and its call graph edges.
+ *
+ * Every program imports __builtin__, and the module-level code of __builtin__ does not
+ * depend on the program, hence the analysis of a program can resume at the exit nodes of
+ * a snapshot (see Modules.handleImportNode) instead of analyzing the module anew.
+ */
+class BuiltinSnapshot(val cfg: ControlFlowGraph,
+                      val states: Map[Node, StateLattice.Elt],
+                      val callGraph: Set[CallGraphLattice.Edge],
+                      val transformedReadPropertyNodes: Set[ReadPropertyNode])
+
+/**
+ * Snapshots are stored in a directory under a digest of the source of __builtin__, the
+ * options that affect its analysis and the class files of the analyzer. They are written
+ * on top of the CFG format of CFGCache, followed by a table of the object labels and the
+ * states, which refer to the labels by their position in the table.
+ */
+object BuiltinSnapshot {
+  private val MAGIC = 0x54534e50 // "TSNP"
+  private val FORMAT_VERSION = 1
+
+  /**
+    * Returns the snapshot of the __builtin__ module next to the analyzed program, which is
+    * built if dir has none. None if there is no snapshot of the module, i.e. if the module
+    * cannot be analyzed on its own within the budget of worklist.
+    */
+  def get(dir: File, worklist: Worklist[AnalysisLattice.Elt], options: Options): Option[BuiltinSnapshot] = {
+    val file = worklist.getModuleFile("__builtin__")
+    if (!file.isFile())
+      return None
+
+    val snapshotFile = new File(dir, key(Files.readAllBytes(file.toPath()), options) + ".snapshot")
+    val snapshot = loaded.get(snapshotFile)
+    if (snapshot != null)
+      return Some(snapshot)
+
+    val result = readOrBuild(snapshotFile, worklist, options)
+    result.foreach {(snapshot) => loaded.put(snapshotFile, snapshot)}
+    result
+  }
+
+  // The snapshots that have been read or built by this process, which the analyses can share
+  private val loaded = new ConcurrentHashMap[File, BuiltinSnapshot]()
+
+  private def readOrBuild(snapshotFile: File, worklist: Worklist[AnalysisLattice.Elt], options: Options): Option[BuiltinSnapshot] = {
+    if (snapshotFile.isFile()) {
+      try {
+        return Some(read(snapshotFile))
+      } catch {
+        // A truncated or otherwise corrupt snapshot (see CFGCache.readEntry), which is overwritten below
+        case _: IOException | _: BufferUnderflowException | _: IllegalArgumentException | _: IndexOutOfBoundsException =>
+      }
+    }
+
+    val snapshot = build(worklist, options)
+    snapshot.foreach {(snapshot) => write(snapshot, snapshotFile)}
+    snapshot
+  }
+
+  /** Analyzes the __builtin__ module on its own, with the options of the program. */
+  def build(worklist: Worklist[AnalysisLattice.Elt], options: Options): Option[BuiltinSnapshot] = {
+    val cfg = worklist.getCFG("__builtin__")
+    val builtinOptions = options.copy(builtinSnapshot = None, metrics = None)
+    val analysis = new TypeAnalysis(cfg, builtinOptions)
+    val builtinWorklist = new Worklist[AnalysisLattice.Elt](analysis, AnalysisLattice, cfg, worklist.path, builtinOptions)
+    builtinWorklist.cfgCache = worklist.cfgCache
+
+    val solution = builtinWorklist.run()
+    if (builtinWorklist.exhausted)
+      return None
+
+    // The states that flow into the exit nodes, such that the exit nodes are evaluated as usual
+    val states = builtinWorklist.cfg.exitNodes.foldLeft(Map[Node, StateLattice.Elt]()) {(acc, exitNode) =>
+      val predStates = builtinWorklist.cfg.getPredecessors(exitNode).foldLeft(solution) {(states, pred) => builtinWorklist.materialize(pred, states)}
+      acc + (exitNode -> exitNode.getState(analysis.join(exitNode, predStates)))
+    }
+    Some(new BuiltinSnapshot(builtinWorklist.cfg, states, AnalysisLattice.getCallGraph(solution).edges, analysis.transformedReadPropertyNodes))
+  }
+
+  def key(source: Array[Byte], options: Options): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(analyzerVersion)
+    digest.update(options.analysisSettings.toString().getBytes("UTF-8"))
+    digest.update(0: Byte)
+    digest.update(source)
+    digest.digest().map("%02x".format(_)).mkString
+  }
+
+  // A digest of the jar or the class files that make up the analyzer
+  private lazy val analyzerVersion: Array[Byte] = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val location = new File(classOf[TypeAnalysis].getProtectionDomain().getCodeSource().getLocation().toURI())
+    val files = if (location.isDirectory()) Files.walk(location.toPath()).iterator().asScala.toList.filter(Files.isRegularFile(_)).sorted else List(location.toPath())
+    files.foreach {(file: Path) =>
+      digest.update(location.toPath().relativize(file).toString().getBytes("UTF-8"))
+      digest.update(Files.readAllBytes(file))
+    }
+    digest.update(BigInt(FORMAT_VERSION).toByteArray)
+    digest.digest()
+  }
+
+  /*
+   * Writing
+   */
+
+  def write(snapshot: BuiltinSnapshot, file: File): Unit = CFGCache.writeEntry(file) {(writer) =>
+    val stateNodes = snapshot.states.keys.toList
+    if (snapshot.callGraph.exists((edge) => edge._1 != null || edge._3 != null))
+      throw new CFGCache.NotCacheableException("Context sensitive call graph")
+
+    // The states go first, since the CFG has to include the nodes of the labels they reach
+    val bytes = new ByteArrayOutputStream()
+    val states = new StateWriter(new CFGCache.Writer(new DataOutputStream(bytes)))
+    stateNodes.foreach((node) => states.state(snapshot.states(node)))
+    states.out.out.flush()
+
+    val edgeNodes = snapshot.callGraph.foldLeft(Set[Node]()) {(acc, edge) => acc + edge._2 + edge._4}
+    val labelNodes = states.labels.foldLeft(Set[Node]()) {(acc, label) => acc ++ nodes(label)}
+    writer.writeCFG(snapshot.cfg, edgeNodes ++ labelNodes ++ stateNodes ++ snapshot.transformedReadPropertyNodes, states.registers)
+
+    writer.out.writeInt(MAGIC)
+    writer.out.writeInt(FORMAT_VERSION)
+    writer.out.writeInt(states.labels.size)
+    states.labels.foreach((label) => writeLabel(writer, states, label))
+
+    writer.out.writeInt(snapshot.callGraph.size)
+    snapshot.callGraph.foreach {(edge) =>
+      val (_, pred, _, succ, isFunctionCall, isNormal) = edge
+      writer.ref(pred)
+      writer.ref(succ)
+      writer.out.writeBoolean(isFunctionCall)
+      writer.out.writeBoolean(isNormal)
+    }
+
+    writer.out.writeInt(snapshot.transformedReadPropertyNodes.size)
+    snapshot.transformedReadPropertyNodes.foreach(writer.ref)
+
+    writer.out.writeInt(stateNodes.size)
+    stateNodes.foreach(writer.ref)
+    bytes.writeTo(writer.out)
+  }
+
+  private def nodes(label: ObjectLabel): Set[Node] = label match {
+    case NewStyleClassObjectLabel(declNode, entryNode, exitNode, _) => Set(declNode, entryNode, exitNode)
+    case OldStyleClassObjectLabel(declNode, entryNode, exitNode, _) => Set(declNode, entryNode, exitNode)
+    case FunctionScopeObjectLabel(declNode, entryNode, exitNode) => Set(declNode, entryNode, exitNode)
+    case FunctionObjectLabel(declNode, entryNode, exitNode, exceptionalExitNode, _) => Set(declNode, entryNode, exitNode, exceptionalExitNode)
+    case NewStyleInstanceObjectLabel(_, allocationSite) => Set(allocationSite)
+    case OldStyleInstanceObjectLabel(_, allocationSite) => Set(allocationSite)
+    case _ => Set()
+  }
+
+  private def writeLabel(writer: CFGCache.Writer, states: StateWriter, label: ObjectLabel): Unit = {
+    val out = writer.out
+    def bases(bases: List[Set[ObjectLabel]]): Unit = {
+      out.writeInt(bases.size)
+      bases.foreach((base) => states.labelSet(base, out))
+    }
+
+    label match {
+      case ModuleScopeObjectLabel(name) => out.writeByte(0); writer.string(name)
+      case NewStyleClassObjectLabel(declNode, entryNode, exitNode, b) => out.writeByte(1); writer.ref(declNode); writer.ref(entryNode); writer.ref(exitNode); bases(b)
+      case OldStyleClassObjectLabel(declNode, entryNode, exitNode, b) => out.writeByte(2); writer.ref(declNode); writer.ref(entryNode); writer.ref(exitNode); bases(b)
+      case ObjectBuiltinObjectLabel() => out.writeByte(3)
+      case WrapperObjectLabel(functionLabel) => out.writeByte(4); out.writeInt(states.label(functionLabel))
+      case UnboundMethodObjectLabel(functionLabel) => out.writeByte(5); out.writeInt(states.label(functionLabel))
+      case BoundMethodObjectLabel(instance, functionLabel) => out.writeByte(6); out.writeInt(states.label(instance)); out.writeInt(states.label(functionLabel))
+      case FunctionScopeObjectLabel(declNode, entryNode, exitNode) => out.writeByte(7); writer.ref(declNode); writer.ref(entryNode); writer.ref(exitNode)
+      case FunctionObjectLabel(declNode, entryNode, exitNode, exceptionalExitNode, scopeLabel) =>
+        out.writeByte(8); writer.ref(declNode); writer.ref(entryNode); writer.ref(exitNode); writer.ref(exceptionalExitNode); out.writeInt(states.label(scopeLabel))
+      case NewStyleInstanceObjectLabel(classLabel, allocationSite) => out.writeByte(9); out.writeInt(states.label(classLabel)); writer.ref(allocationSite)
+      case OldStyleInstanceObjectLabel(classLabel, allocationSite) => out.writeByte(10); out.writeInt(states.label(classLabel)); writer.ref(allocationSite)
+      case _ => throw new CFGCache.NotCacheableException(label)
+    }
+  }
+
+  /**
+    * Writes states, and numbers the labels they reach in the order they have to be read:
+    * the labels that are part of a label (e.g. the function of a bound method) go first.
+    */
+  private class StateWriter(val out: CFGCache.Writer) {
+    val labels = new ArrayBuffer[ObjectLabel]()
+    var registers = Set[Int]()
+    private val ids = new HashMap[ObjectLabel, Int]()
+
+    def state(state: StateLattice.Elt): Unit = {
+      StateLattice.getHeap(state) match {
+        case HeapLattice.Concrete(heap) =>
+          out.out.writeInt(heap.size)
+          heap.foreach {(entry) => out.out.writeInt(label(entry._1)); obj(entry._2)}
+        case _ => out.out.writeInt(-1)
+      }
+
+      StackLattice.getStackFrame(StateLattice.getStack(state)) match {
+        case StackFrameLattice.Concrete(registers) =>
+          out.out.writeInt(registers.size)
+          registers.foreach {(entry) =>
+            this.registers = this.registers + entry._1
+            out.reg(entry._1)
+            value(entry._2)
+          }
+        case _ => out.out.writeInt(-1)
+      }
+
+      optional(StateLattice.getExecutionContexts(state)) {(executionContexts) =>
+        executionContexts.foreach {(executionContext) =>
+          val (scopeChain, variableObject) = executionContext
+          labelList(scopeChain)
+          out.out.writeInt(label(variableObject))
+        }
+      }
+    }
+
+    private def obj(obj: ObjectLattice.Elt): Unit = {
+      ObjectLattice.getProperties(obj) match {
+        case PropertiesLattice.Concrete(properties) =>
+          out.out.writeInt(properties.size)
+          properties.foreach {(entry) =>
+            val (property, (value, (absent, (modified, global)))) = entry
+            out.string(property)
+            this.value(value)
+            out.out.writeBoolean(absent == AbsentLattice.top)
+            out.out.writeBoolean(modified == ModifiedLattice.top)
+            out.out.writeBoolean(global == GlobalLattice.top)
+          }
+        case _ => out.out.writeInt(-1)
+      }
+      optional(ObjectLattice.getScopeChain(obj)) {(scopeChains) => scopeChains.foreach(labelList)}
+    }
+
+    private def value(value: ValueLattice.Elt): Unit = {
+      val (undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels) = ValueLattice.unpackElement(value)
+      out.out.writeBoolean(undefined == UndefinedLattice.top)
+      out.out.writeBoolean(none == NoneLattice.top)
+      out.out.writeBoolean(notImplemented == NotImplementedLattice.top)
+      out.out.writeBoolean(ellipsis == EllipsisLattice.top)
+
+      boolean match {
+        case BooleanLattice.Concrete(b) => out.out.writeByte(1); out.out.writeBoolean(b)
+        case BooleanLattice.Abstract() => out.out.writeByte(2)
+        case _ => out.out.writeByte(0)
+      }
+      integer match {
+        case IntegerLattice.Concrete(i) => out.out.writeByte(1); out.out.writeInt(i)
+        case IntegerLattice.Abstract() => out.out.writeByte(2)
+        case _ => out.out.writeByte(0)
+      }
+      this.float(float)
+      long match {
+        case LongLattice.Concrete(l) => out.out.writeByte(1); out.string(l.toString())
+        case LongLattice.Abstract() => out.out.writeByte(2)
+        case _ => out.out.writeByte(0)
+      }
+      this.float(complex._1)
+      this.float(complex._2)
+      string match {
+        case StringLattice.Concrete(s) => out.out.writeByte(1); out.string(s)
+        case StringLattice.Abstract() => out.out.writeByte(2)
+        case _ => out.out.writeByte(0)
+      }
+      if (objectLabels == null) out.out.writeInt(-1) else labelSet(objectLabels, out.out)
+    }
+
+    private def float(float: FloatLattice.Elt): Unit = float match {
+      case FloatLattice.Concrete(f) => out.out.writeByte(1); out.out.writeDouble(f)
+      case FloatLattice.Abstract() => out.out.writeByte(2)
+      case _ => out.out.writeByte(0)
+    }
+
+    // Sets (and lists) that may be top are written as -1
+    private def optional[T <: Iterable[_]](elements: T)(write: T => Unit): Unit =
+      if (elements == null) out.out.writeInt(-1) else { out.out.writeInt(elements.size); write(elements) }
+
+    private def labelList(labels: List[ObjectLabel]): Unit = {
+      out.out.writeInt(labels.size)
+      labels.foreach((l) => out.out.writeInt(label(l)))
+    }
+
+    def labelSet(labels: Set[ObjectLabel], out: DataOutputStream): Unit = {
+      out.writeInt(labels.size)
+      labels.foreach((l) => out.writeInt(label(l)))
+    }
+
+    def label(label: ObjectLabel): Int = ids.get(label) match {
+      case Some(id) => id
+      case None =>
+        embeddedLabels(label).foreach(this.label)
+        ids.put(label, labels.size)
+        labels += label
+        labels.size - 1
+    }
+
+    private def embeddedLabels(label: ObjectLabel): List[ObjectLabel] = label match {
+      case label: BoundMethodObjectLabel => List(label.instance, label.functionLabel)
+      case label: UnboundMethodObjectLabel => List(label.functionLabel)
+      case label: WrapperObjectLabel => List(label.label)
+      case label: FunctionObjectLabel => List(label.scopeLabel)
+      case label: NewStyleInstanceObjectLabel => List(label.classLabel)
+      case label: OldStyleInstanceObjectLabel => List(label.classLabel)
+      case label: NewStyleClassObjectLabel => label.bases.flatten
+      case label: OldStyleClassObjectLabel => label.bases.flatten
+      case _ => List()
+    }
+  }
+
+  /*
+   * Reading
+   */
+
+  def read(file: File): BuiltinSnapshot = CFGCache.readEntry(file) {(reader) =>
+    val in = reader.in
+    val cfg = reader.readCFG()
+    if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+      throw new IOException("Not a snapshot: " + file)
+
+    val labels = new ArrayBuffer[ObjectLabel]()
+    def label(): ObjectLabel = labels(in.getInt())
+    def labelSet(): Set[ObjectLabel] = List.fill(in.getInt())(label()).toSet
+    def labelList(): List[ObjectLabel] = List.fill(in.getInt())(label())
+    def bases(): List[Set[ObjectLabel]] = List.fill(in.getInt())(labelSet())
+
+    (0 until in.getInt()).foreach {(_) =>
+      labels += (in.get() match {
+        case 0 => ModuleScopeObjectLabel(reader.string())
+        case 1 => NewStyleClassObjectLabel(classDecl(reader.ref()), classEntry(reader.ref()), classExit(reader.ref()), bases())
+        case 2 => OldStyleClassObjectLabel(classDecl(reader.ref()), classEntry(reader.ref()), classExit(reader.ref()), bases())
+        case 3 => ObjectBuiltinObjectLabel()
+        case 4 => WrapperObjectLabel(label().asInstanceOf[FunctionObjectLabel])
+        case 5 => UnboundMethodObjectLabel(label().asInstanceOf[FunctionObjectLabel])
+        case 6 => BoundMethodObjectLabel(label(), label().asInstanceOf[FunctionObjectLabel])
+        case 7 => FunctionScopeObjectLabel(functionDecl(reader.ref()), functionEntry(reader.ref()), functionExit(reader.ref()))
+        case 8 => FunctionObjectLabel(functionDecl(reader.ref()), functionEntry(reader.ref()), functionExit(reader.ref()),
+                                      reader.ref().asInstanceOf[ExceptionalExitNode], label().asInstanceOf[FunctionScopeObjectLabel])
+        case 9 => NewStyleInstanceObjectLabel(label().asInstanceOf[NewStyleClassObjectLabel], reader.ref())
+        case 10 => OldStyleInstanceObjectLabel(label().asInstanceOf[OldStyleClassObjectLabel], reader.ref().asInstanceOf[CallNode])
+        case tag => throw new IOException("Unknown label tag " + tag)
+      })
+    }
+
+    val callGraph = (0 until in.getInt()).foldLeft(Set[CallGraphLattice.Edge]()) {(acc, _) =>
+      acc + ((null, reader.ref(), null, reader.ref(), reader.bool(), reader.bool()))
+    }
+    val transformedReadPropertyNodes = List.fill(in.getInt())(reader.ref().asInstanceOf[ReadPropertyNode]).toSet
+    val stateNodes = List.fill(in.getInt())(reader.ref())
+
+    def floatElt(): FloatLattice.Elt = in.get() match {
+      case 1 => FloatLattice.Concrete(in.getDouble())
+      case 2 => FloatLattice.Abstract()
+      case _ => FloatLattice.Bottom()
+    }
+
+    def valueElt(): ValueLattice.Elt = {
+      val undefined = if (reader.bool()) UndefinedLattice.top else UndefinedLattice.bottom
+      val none = if (reader.bool()) NoneLattice.top else NoneLattice.bottom
+      val notImplemented = if (reader.bool()) NotImplementedLattice.top else NotImplementedLattice.bottom
+      val ellipsis = if (reader.bool()) EllipsisLattice.top else EllipsisLattice.bottom
+      val boolean = in.get() match {
+        case 1 => BooleanLattice.Concrete(reader.bool())
+        case 2 => BooleanLattice.Abstract()
+        case _ => BooleanLattice.Bottom()
+      }
+      val integer = in.get() match {
+        case 1 => IntegerLattice.Concrete(in.getInt())
+        case 2 => IntegerLattice.Abstract()
+        case _ => IntegerLattice.Bottom()
+      }
+      val float = floatElt()
+      val long = in.get() match {
+        case 1 => LongLattice.Concrete(new java.math.BigInteger(reader.string()))
+        case 2 => LongLattice.Abstract()
+        case _ => LongLattice.Bottom()
+      }
+      val complex = (floatElt(), floatElt())
+      val string = in.get() match {
+        case 1 => StringLattice.Concrete(reader.string())
+        case 2 => StringLattice.Abstract()
+        case _ => StringLattice.Bottom()
+      }
+      val objectLabels = in.getInt() match {
+        case -1 => ObjectLabelLattice.top
+        case size => List.fill(size)(label()).toSet
+      }
+      ValueLattice.packElement(undefined, none, notImplemented, ellipsis, boolean, integer, float, long, complex, string, objectLabels)
+    }
+
+    def objectElt(): ObjectLattice.Elt = {
+      val properties = in.getInt() match {
+        case -1 => PropertiesLattice.top
+        case size => PropertiesLattice.Concrete((0 until size).foldLeft(Map[String, PropertyLattice.Elt]()) {(acc, _) =>
+          val property = reader.string()
+          val value = valueElt()
+          val absent = if (reader.bool()) AbsentLattice.top else AbsentLattice.bottom
+          val modified = if (reader.bool()) ModifiedLattice.top else ModifiedLattice.bottom
+          val global = if (reader.bool()) GlobalLattice.top else GlobalLattice.bottom
+          acc + (property -> (value, (absent, (modified, global))))
+        })
+      }
+      val scopeChain = in.getInt() match {
+        case -1 => ScopeChainPowerLattice.top
+        case size => List.fill(size)(labelList()).toSet
+      }
+      (properties, scopeChain)
+    }
+
+    def stateElt(): StateLattice.Elt = {
+      val heap = in.getInt() match {
+        case -1 => HeapLattice.top
+        case size => HeapLattice.Concrete((0 until size).foldLeft(HashTrieMap.empty[ObjectLabel, ObjectLattice.Elt]) {(acc, _) => acc + (label() -> objectElt())})
+      }
+      val stackFrame = in.getInt() match {
+        case -1 => StackFrameLattice.top
+        case size => StackFrameLattice.Concrete((0 until size).foldLeft(Map[Int, ValueLattice.Elt]()) {(acc, _) => acc + (reader.reg() -> valueElt())})
+      }
+      val executionContexts = in.getInt() match {
+        case -1 => ExecutionContextLattice.top
+        case size => List.fill(size)((labelList(), label())).toSet
+      }
+      (heap, (stackFrame, executionContexts))
+    }
+
+    val states = stateNodes.foldLeft(Map[Node, StateLattice.Elt]()) {(acc, node) => acc + (node -> stateElt())}
+    new BuiltinSnapshot(cfg, states, callGraph, transformedReadPropertyNodes)
+  }
+
+  private def classDecl(node: Node) = node.asInstanceOf[ClassDeclNode]
+  private def classEntry(node: Node) = node.asInstanceOf[ClassEntryNode]
+  private def classExit(node: Node) = node.asInstanceOf[ClassExitNode]
+  private def functionDecl(node: Node) = node.asInstanceOf[FunctionDeclNode]
+  private def functionEntry(node: Node) = node.asInstanceOf[FunctionEntryNode]
+  private def functionExit(node: Node) = node.asInstanceOf[FunctionExitNode]
+}
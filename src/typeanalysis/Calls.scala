@@ -12,7 +12,9 @@ import tapy.exceptions._
 import tapy.constants
 import scala.collection.JavaConversions._
 
-trait Calls extends Exceptions with Logger {
+trait Calls extends Exceptions with FunctionSummaries with ContextSensitivity with Logger {
+  override type Elt = AnalysisLattice.Elt
+  
   var worklist: Worklist[AnalysisLattice.Elt]
   
   def handleCallNode(node: CallNode, solution: Elt): Elt = {
@@ -129,16 +131,18 @@ trait Calls extends Exceptions with Logger {
       ValueLattice.getObjectLabels(init).foldLeft(tmp) {(acc, initLabel) =>
         initLabel match {
           case initLabel: BoundMethodObjectLabel =>
-            tmp = handleFunctionArguments(callNode, initLabel.functionLabel, tmp, Some(ValueLattice.setObjectLabels(Set(initLabel.instance))))
+            val callerContext = getContext(callNode)
+            val (context, functionLabel) = enterContext(callNode, initLabel.functionLabel, Some(initLabel.instance))
+            tmp = handleFunctionArguments(callNode, functionLabel, tmp, Some(ValueLattice.setObjectLabels(Set(initLabel.instance))))
             
             // Normal call edges
             tmp = AnalysisLattice.updateCallGraph(tmp,
-              Set((null, callNode, null, initLabel.functionLabel.entryNode, false, true),
-                  (null, initLabel.functionLabel.exitNode, null, afterCallNode, false, true)))
+              Set((callerContext, callNode, context, functionLabel.entryNode, false, true),
+                  (context, functionLabel.exitNode, callerContext, afterCallNode, false, true)))
             
             // Exception call edges
             worklist.cfg.getExceptionSuccessors(callNode).foldLeft(tmp) {(acc, succ) =>
-              AnalysisLattice.updateCallGraph(acc, Set((null, initLabel.functionLabel.exceptionalExitNode, null, succ, false, false)))
+              AnalysisLattice.updateCallGraph(acc, Set((context, functionLabel.exceptionalExitNode, callerContext, succ, false, false)))
             }
             
             callNode.updateStackFrame(tmp, StackConstants.RETURN_CONSTRUCTOR, instanceValue)
@@ -154,36 +158,50 @@ trait Calls extends Exceptions with Logger {
   }
   
   def handleFunctionObjectCall(callNode: CallNode, afterCallNode: AfterCallNode, functionLabel: FunctionObjectLabel, solution: Elt): Elt = {
-    var tmp = handleFunctionArguments(callNode, functionLabel, solution)
+    val (context, calleeLabel) = enterContext(callNode, functionLabel, None)
+    var tmp = handleFunctionArguments(callNode, calleeLabel, solution)
+    
+    val summary = applySummary(callNode, calleeLabel, context, tmp)
+    if (summary != None)
+      return summary.get
+    
+    val callerContext = getContext(callNode)
     
     // Normal call edges
     tmp = AnalysisLattice.updateCallGraph(tmp,
-      Set((null, callNode, null, functionLabel.entryNode, true, true),
-          (null, functionLabel.exitNode, null, afterCallNode, true, true)))
+      Set((callerContext, callNode, context, calleeLabel.entryNode, true, true),
+          (context, calleeLabel.exitNode, callerContext, afterCallNode, true, true)))
           
     // Exception call edges
     worklist.cfg.getExceptionSuccessors(callNode).foldLeft(tmp) {(acc, succ) =>
-      AnalysisLattice.updateCallGraph(acc, Set((null, functionLabel.exceptionalExitNode, null, succ, true, false)))
+      AnalysisLattice.updateCallGraph(acc, Set((context, calleeLabel.exceptionalExitNode, callerContext, succ, true, false)))
     }
   }
   
   def handleBoundMethodObjectCall(callNode: CallNode, afterCallNode: AfterCallNode, methodLabel: BoundMethodObjectLabel, solution: Elt): Elt = {
-    var tmp = handleFunctionArguments(callNode, methodLabel.functionLabel, solution, Some(ValueLattice.setObjectLabels(Set(methodLabel.instance)))) // TODO
+    val (context, calleeLabel) = enterContext(callNode, methodLabel.functionLabel, Some(methodLabel.instance))
+    var tmp = handleFunctionArguments(callNode, calleeLabel, solution, Some(ValueLattice.setObjectLabels(Set(methodLabel.instance)))) // TODO
+    
+    val summary = applySummary(callNode, calleeLabel, context, tmp)
+    if (summary != None)
+      return summary.get
+    
+    val callerContext = getContext(callNode)
     
     // Normal call edges
     tmp = AnalysisLattice.updateCallGraph(tmp,
-      Set((null, callNode, null, methodLabel.functionLabel.entryNode, true, true),
-          (null, methodLabel.functionLabel.exitNode, null, afterCallNode, true, true)))
+      Set((callerContext, callNode, context, calleeLabel.entryNode, true, true),
+          (context, calleeLabel.exitNode, callerContext, afterCallNode, true, true)))
     
     // Exception call edges
     worklist.cfg.getExceptionSuccessors(callNode).foldLeft(tmp) {(acc, succ) =>
-      AnalysisLattice.updateCallGraph(acc, Set((null, methodLabel.functionLabel.exceptionalExitNode, null, succ, true, false)))
+      AnalysisLattice.updateCallGraph(acc, Set((context, calleeLabel.exceptionalExitNode, callerContext, succ, true, false)))
     }
   }
   
   /* Sets the argument-registers given to the callNode on the functionObjectScope with the correct naming */
   def handleFunctionArguments(callNode: CallNode, functionLabel: FunctionObjectLabel, solution: Elt, receiver: Option[ValueLattice.Elt] = None): Elt = {
-    var functionScopeObject = HeapLattice.getObject(callNode.getHeap(solution), functionLabel.scopeLabel)
+    var functionScopeObject = getScopeObject(callNode, functionLabel, solution)
     
     if (callNode.keywordRegs.size > 0)
       throw new NotImplementedException("Keywords on function calls is not implemented");
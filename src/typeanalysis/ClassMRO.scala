@@ -12,50 +12,61 @@ import tapy.exceptions._
 import tapy.constants
 import scala.collection.JavaConversions._
 
-object ClassMRO {
+/**
+ * The method resolution order of classes. Linearizations are kept for the lifetime of the
+ * instance, i.e. of the analysis that owns it (see TypeAnalysis.classMRO).
+ */
+class ClassMRO {
   
+  // The linearizations of each class. The bases of a class are part of its label, so a class
+  // whose bases change in the heap gets a new label, and a linearization never goes stale
+  private val linearizations = scala.collection.mutable.HashMap[ObjectLabel, Set[List[ObjectLabel]]]()
+
   def mro(label: ObjectLabel, state: StateLattice.Elt): Set[List[ObjectLabel]] =
     linearize(label, state)
     
   /**
    * L[C(B1 ... BN)] = C + merge(L[B1] ... L[BN], B1 ... BN)
+   *
+   * Each base may be one of several classes, with several linearizations each, so the result
+   * is the set of linearizations of every choice. The choices are enumerated depth first, such
+   * that choices with a common prefix share it, and each class is linearized only once.
    */
   def linearize(classLabel: ObjectLabel, state: StateLattice.Elt, indent: String = ""): Set[List[ObjectLabel]] = {
-    val (name, bases) = classLabel match {
-      case BuiltIn.objectLabel =>  ("object", List())
-      case NewStyleClassObjectLabel(_, entryNode, _, bases) => (entryNode.classDef.getInternalName(), bases)
+    linearizations.get(classLabel) match {
+      case Some(cached) => return cached
+      case None =>
     }
     
-    val linearizations = bases.foldLeft(Map[ObjectLabel, Set[List[ObjectLabel]]]()) {(acc, labels) =>
-      labels.foldLeft(acc) {(acc, label) =>
-        if (acc.contains(label)) acc else acc + (label -> linearize(label, state, indent + "    "))
-      }
+    val bases = classLabel match {
+      case BuiltIn.objectLabel => List()
+      case NewStyleClassObjectLabel(_, _, _, bases) => bases
     }
     
-    val labelCombinations = combineListOfSets(bases)
-    val result = labelCombinations.foldLeft(Set[List[ObjectLabel]]()) {(acc, labelCombination) =>
-      prepare(labelCombination, labelCombination, linearizations).foldLeft(acc) {(acc, input) =>
-        acc ++ merge(input, state, indent + "    ")
+    // The linearizations each base can take; each starts with the class chosen for the base
+    val choices = bases.map((labels) => labels.toList.flatMap((label) => linearize(label, state, indent + "    ")))
+    
+    def choose(remaining: List[List[List[ObjectLabel]]], chosen: List[List[ObjectLabel]], acc: Set[List[ObjectLabel]]): Set[List[ObjectLabel]] = {
+      remaining match {
+        case Nil =>
+          val input = chosen.reverse
+          acc ++ merge(input :+ input.map(_.head), state, indent + "    ")
+        case linearizations :: remaining =>
+          linearizations.foldLeft(acc) {(acc, linearization) => choose(remaining, linearization :: chosen, acc)}
       }
     }
     
-    if (result.isEmpty)
-      Set(List(classLabel))
-    else
-      result.map((list) => classLabel :: list)
+    val result = if (choices.isEmpty) Set[List[ObjectLabel]]() else choose(choices, Nil, Set())
+    val linearization =
+      if (result.isEmpty)
+        Set(List(classLabel))
+      else
+        result.map((list) => classLabel :: list)
+    
+    linearizations.put(classLabel, linearization)
+    linearization
   }
   
-  def prepare(labelCombination: List[ObjectLabel], originalLabelCombination: List[ObjectLabel], linearizationMap: Map[ObjectLabel, Set[List[ObjectLabel]]]): Set[List[List[ObjectLabel]]] = {
-    labelCombination match {
-      case Nil => Set(List(originalLabelCombination))
-      case label :: remaining =>
-        val linearizations = linearizationMap.getOrElse(label, Set())
-        val remainingLinearizations = prepare(remaining, originalLabelCombination, linearizationMap)
-        linearizations.foldLeft(Set[List[List[ObjectLabel]]]()) {(acc, linearization) =>
-          acc ++ remainingLinearizations.map((linearizationList) => linearization :: linearizationList)
-        }
-    }
-  }
   /**
    * Merge: take the head of the first list, i.e L[B1][0]; if this
    * head is not in the tail of any of the other lists, then add it
@@ -104,23 +115,6 @@ object ClassMRO {
     }
   }
   
-  def combineListOfSets(list: List[Set[ObjectLabel]], indent: String = ""): Set[List[ObjectLabel]] = {
-    list match {
-      case Nil => Set()
-      case set :: remaining =>
-        if (remaining == Nil)
-          set.map((label) => List(label))
-        else {
-          val tmp = combineListOfSets(remaining)
-          set.foldLeft(Set[List[ObjectLabel]]()) {(acc, setLabel) =>
-            tmp.foldLeft(acc) {(acc, tmpList) =>
-              acc + (setLabel :: tmpList)
-            }
-          }
-        }
-    }
-  }
-  
   /*
   def ppSetOfListsOfLists(data: Set[List[List[ObjectLabel]]]): String = {
     "{" + data.foldLeft("") {(acc, list) => acc + ppListOfLists(list) + ", " } + "}"
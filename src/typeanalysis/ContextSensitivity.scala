@@ -0,0 +1,152 @@
+package tapy.typeanalysis
+
+import tapy.dfa._
+import tapy.cfg._
+import tapy.lattices._
+
+/**
+ * Bounded context sensitivity: a function is analyzed in a copy of its body for each context
+ * that it is called in, such that the state of one context does not flow into the others. The
+ * context of a call is the last contextDepth call nodes of the call string that leads to it,
+ * or with objectSensitivity, the last contextDepth receivers of the method calls.
+ *
+ * The body of a function is the part of the CFG reachable from its entry node, along with the
+ * functions and classes declared in it. A copy has fresh nodes and registers, and a scope
+ * object of its own. The call graph edges into and out of a copy are tagged with its context.
+ *
+ * A function is copied for at most maxContexts contexts. Calls in other contexts, and calls of
+ * functions whose body cannot be copied, merge into the body of the function itself, which is
+ * the null context as without context sensitivity.
+ */
+trait ContextSensitivity extends Environment with Logger {
+  var worklist: Worklist[AnalysisLattice.Elt]
+
+  val options: Options
+
+  // Number of function bodies copied so far
+  var contextCopies: Int = 0
+
+  // The copy of each function in each of its contexts, and the number of contexts of each function
+  private var copies: Map[(FunctionObjectLabel, List[Any]), FunctionObjectLabel] = Map()
+  private var contextCounts: Map[FunctionObjectLabel, Int] = Map()
+
+  // The function that each copy was made from
+  private var copiedFunctions: Map[FunctionObjectLabel, FunctionObjectLabel] = Map()
+
+  // The context of each node of a copy, and the node of the CFG that it is a copy of
+  private var nodeContexts: Map[Node, List[Any]] = Map()
+  private var originalNodes: Map[Node, Node] = Map()
+
+  /** The context that node is analyzed in, null if it is not part of a copy. */
+  def getContext(node: Node): List[Any] = nodeContexts.getOrElse(node, null)
+
+  /**
+    * The context of the call of functionLabel at callNode, along with the label of the copy of
+    * the function that is analyzed in that context. receiver is the instance of a method call.
+    */
+  def enterContext(callNode: CallNode, functionLabel: FunctionObjectLabel, receiver: Option[ObjectLabel]): (List[Any], FunctionObjectLabel) = {
+    if (options.contextDepth == 0)
+      return (null, functionLabel)
+
+    val callerContext = nodeContexts.getOrElse(callNode, Nil)
+    val context = receiver match {
+      case Some(receiver) if options.objectSensitivity => (receiver :: callerContext).take(options.contextDepth)
+      case None if options.objectSensitivity => callerContext
+      case _ => (originalNodes.getOrElse(callNode, callNode) :: callerContext).take(options.contextDepth)
+    }
+
+    if (context.isEmpty)
+      return (null, functionLabel)
+
+    copies.get((functionLabel, context)) match {
+      case Some(copy) => (context, copy)
+      case None if contextCounts.getOrElse(functionLabel, 0) >= options.maxContexts => (null, functionLabel)
+      case None =>
+        contextCounts = contextCounts + (functionLabel -> (contextCounts.getOrElse(functionLabel, 0) + 1))
+        copyFunction(functionLabel, context) match {
+          case Some(copy) =>
+            copies = copies + ((functionLabel, context) -> copy)
+            (context, copy)
+
+          case None =>
+            // Never try again
+            contextCounts = contextCounts + (functionLabel -> options.maxContexts)
+            (null, functionLabel)
+        }
+    }
+  }
+
+  /**
+    * The scope object of functionLabel at callNode. A copy takes the scope chain of the
+    * function that it was made from, which is set when the function is declared.
+    */
+  def getScopeObject(callNode: CallNode, functionLabel: FunctionObjectLabel, solution: AnalysisLattice.Elt): ObjectLattice.Elt = {
+    val scopeObject = callNode.getObject(solution, functionLabel.scopeLabel)
+    copiedFunctions.get(functionLabel) match {
+      case Some(function) => ObjectLattice.setScopeChain(ObjectLattice.getScopeChain(callNode.getObject(solution, function.scopeLabel)), scopeObject)
+      case None => scopeObject
+    }
+  }
+
+  /**
+    * Splices a copy of the body of functionLabel into the CFG of the worklist, and returns its
+    * label. None if the body cannot be copied, see CFGCache.copy.
+    */
+  private def copyFunction(functionLabel: FunctionObjectLabel, context: List[Any]): Option[FunctionObjectLabel] = {
+    val cfg = worklist.cfg
+    val body = getBody(functionLabel, cfg)
+
+    def restrict(edges: Map[Node, Set[Node]]): Map[Node, Set[Node]] =
+      edges.foldLeft(Map[Node, Set[Node]]()) {(acc, entry) =>
+        if (body.contains(entry._1)) acc + (entry._1 -> entry._2.filter(body.contains)) else acc
+      }
+
+    val bodyCfg = new ControlFlowGraph(Set(functionLabel.entryNode), Set(functionLabel.exitNode), cfg.exceptExitNodes.filter(body.contains),
+                                       body, restrict(cfg.edges), restrict(cfg.exceptionEdges))
+
+    val (copyCfg, copiedNodes) =
+      try {
+        CFGCache.copy(bodyCfg)
+      } catch {
+        case e: CFGCache.NotCacheableException =>
+          log("ContextSensitivity", "Cannot copy " + functionLabel + ": " + e.getMessage())
+          return None
+      }
+
+    log("ContextSensitivity", "Copying " + functionLabel.entryNode.name + " (" + body.size + " nodes) for context " + context)
+    contextCopies += 1
+
+    copiedNodes.foreach {(entry) =>
+      val (node, copy) = entry
+      nodeContexts = nodeContexts + (copy -> context)
+      originalNodes = originalNodes + (copy -> originalNodes.getOrElse(node, node))
+    }
+
+    val entryNode = copiedNodes(functionLabel.entryNode).asInstanceOf[FunctionEntryNode]
+    val exitNode = copiedNodes(functionLabel.exitNode).asInstanceOf[FunctionExitNode]
+    val exceptionalExitNode = copiedNodes(functionLabel.exceptionalExitNode).asInstanceOf[ExceptionalExitNode]
+    val copy = FunctionObjectLabel(functionLabel.declNode, entryNode, exitNode, exceptionalExitNode, FunctionScopeObjectLabel(functionLabel.declNode, entryNode, exitNode))
+    copiedFunctions = copiedFunctions + (copy -> functionLabel)
+
+    this.environmentVariables = this.environmentVariables ++ Environment.buildVariables(copyCfg)
+    this.scopeResolutions = this.scopeResolutions ++ Environment.buildResolutions(copyCfg)
+    worklist.setCFG(cfg.insert(copyCfg), copyCfg)
+    Some(copy)
+  }
+
+  /** The nodes reachable from the entry and exits of functionLabel, including nested declarations. */
+  private def getBody(functionLabel: FunctionObjectLabel, cfg: ControlFlowGraph): Set[Node] = {
+    def visit(pending: List[Node], body: Set[Node]): Set[Node] = pending match {
+      case Nil => body
+      case node :: rest if body.contains(node) => visit(rest, body)
+      case node :: rest =>
+        val declared: List[Node] = node match {
+          case FunctionDeclNode(entry, exit, exceptionalExit, _, _) => List(entry, exit, exceptionalExit)
+          case ClassDeclNode(entry, exit, _, _) => List(entry, exit)
+          case _ => Nil
+        }
+        visit((cfg.getSuccessors(node) ++ cfg.getExceptionSuccessors(node)).toList ++ declared ++ rest, body + node)
+    }
+    visit(List(functionLabel.entryNode, functionLabel.exitNode, functionLabel.exceptionalExitNode), Set())
+  }
+}
@@ -0,0 +1,93 @@
+package tapy.typeanalysis
+
+import tapy.constants.StackConstants
+import tapy.dfa._
+import tapy.cfg._
+import tapy.lattices._
+
+/**
+ * Function summaries: the state at the entry of a function (its input) along with the
+ * state at its exit (its return value and heap). These states are the summary of every call
+ * of the function in one context, see ContextSensitivity.
+ *
+ * A call whose input is subsumed by the summary input, i.e. whose arguments and the part of
+ * the heap the callee can reach are less than those at the entry of the callee, takes its
+ * result from the exit of the callee. Such calls are not wired into the entry of the callee,
+ * so its body is not propagated again, and their state does not flow into the other calls.
+ * The exceptions raised by the callee still flow along the exception call edges.
+ */
+trait FunctionSummaries extends GarbageCollection with ContextSensitivity {
+  var worklist: Worklist[AnalysisLattice.Elt]
+
+  var summaryHits: Int = 0
+  var summaryMisses: Int = 0
+
+  // The call nodes that took their result from a function exit node, by exit node (see nodeDependencies)
+  var summaryUsers: Map[Node, Set[Node]] = Map()
+
+  /**
+    * Returns the result of the call of functionLabel in context at callNode from the summary
+    * of the function, where solution is the state of the call with the arguments bound. None
+    * if the input of the call is not subsumed by the summary.
+    */
+  def applySummary(callNode: CallNode, functionLabel: FunctionObjectLabel, context: List[Any], solution: Elt): Option[Elt] = {
+    if (!options.functionSummaries)
+      return None
+
+    if (!isSubsumed(callNode.getState(solution), functionLabel.entryNode.getState(solution), functionLabel.scopeLabel)) {
+      summaryMisses += 1
+      return None
+    }
+
+    summaryHits += 1
+    log("FunctionSummaries", "Using the summary of " + functionLabel)
+
+    val exitNode = functionLabel.exitNode
+    summaryUsers = summaryUsers + (exitNode -> (summaryUsers.getOrElse(exitNode, Set()) + callNode))
+
+    // The heap after the call is joined with the heap at the call, as in handleAfterCallNode
+    val heap = HeapLattice.leastUpperBound(StateLattice.getHeap(callNode.getState(solution)), StateLattice.getHeap(exitNode.getState(solution)))
+    val tmp = callNode.setState(solution, StateLattice.setHeap(callNode.getState(solution), heap))
+
+    Some(worklist.cfg.getExceptionSuccessors(callNode).foldLeft(callNode.updateStackFrame(tmp, StackConstants.RETURN, exitNode.getRegisterValue(solution, StackConstants.RETURN), true)) {(acc, succ) =>
+      AnalysisLattice.updateCallGraph(acc, Set((context, functionLabel.exceptionalExitNode, getContext(callNode), succ, true, false)))
+    })
+  }
+
+  /**
+    * Whether the objects that the callee can reach in input, and the values of the
+    * StackConstants registers, are less than those in summary. The callee reaches objects
+    * through its scope object (which holds the arguments), its scope chain, the modules
+    * and the StackConstants registers.
+    */
+  private def isSubsumed(input: StateLattice.Elt, summary: StateLattice.Elt, scopeLabel: FunctionScopeObjectLabel): Boolean = {
+    (StateLattice.getHeap(input), StateLattice.getHeap(summary), StackLattice.getStackFrame(StateLattice.getStack(input))) match {
+      case (_, HeapLattice.Top(), _) => true
+      case (HeapLattice.Top(), _, _) | (_, _, StackFrameLattice.Top()) => false
+      case (HeapLattice.Concrete(inputHeap), HeapLattice.Concrete(summaryHeap), StackFrameLattice.Concrete(registers)) =>
+        val constants = registers.filter(_._1 < 0)
+        val summaryFrame = StackLattice.getStackFrame(StateLattice.getStack(summary))
+        if (!constants.forall {(entry) => ValueLattice.compare(entry._2, StackFrameLattice.getRegisterValue(summaryFrame, entry._1))})
+          return false
+
+        val scopeChains = ObjectLattice.getScopeChain(inputHeap.getOrElse(scopeLabel, ObjectLattice.bottom))
+        val constantLabels = constants.values.foldLeft(Option(Set[ObjectLabel]())) {(acc, value) =>
+          val labels = ValueLattice.getObjectLabels(value)
+          if (acc == None || labels == null) None else Some(acc.get ++ labels)
+        }
+        if (scopeChains == null || constantLabels == None)
+          return false
+
+        val modules = inputHeap.keySet.filter(_.isInstanceOf[ModuleScopeObjectLabel])
+        val roots = modules ++ scopeChains.flatten ++ constantLabels.get + scopeLabel + BuiltIn.objectLabel
+        reachable(roots, inputHeap).forall {(label) =>
+          val obj = inputHeap(label)
+          summaryHeap.get(label) match {
+            case Some(summaryObj) => (obj eq summaryObj) || ObjectLattice.compare(obj, summaryObj)
+            case None => false
+          }
+        }
+      case _ => false
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package tapy.typeanalysis
+
+import tapy.constants.StackConstants
+import tapy.dfa._
+import tapy.cfg._
+import tapy.lattices._
+
+/**
+ * Abstract garbage collection: removes the heap objects that can no longer be reached
+ * from the execution contexts, the registers (which include the return and exception
+ * values), or the modules. Function scope objects, bound methods and exception instances
+ * are otherwise kept in the heap forever, and every later join would have to pay for them.
+ *
+ * Objects only reachable from the frame of a caller are removed at function exits too. This
+ * is safe since the callee cannot have modified them, and the AfterCallNode joins the state
+ * of the call node, which still holds them.
+ */
+trait GarbageCollection extends Logger {
+  type Elt = AnalysisLattice.Elt
+
+  val options: Options
+
+  // Number of heap entries removed by the collections so far
+  var collectedObjects: Int = 0
+
+  def collectGarbage(node: Node, solution: Elt): Elt = {
+    if (!options.garbageCollection)
+      return solution
+
+    val state = node.getState(solution)
+    val heap = node.getHeap(solution)
+    if (heap == null)
+      return solution
+
+    roots(state, heap) match {
+      case None =>
+        solution
+
+      case Some(roots) =>
+        val live = reachable(roots, heap)
+        val garbage = heap.size - live.size
+        if (garbage == 0)
+          solution
+        else {
+          log("GarbageCollection", "Removed " + garbage + " heap objects")
+          collectedObjects += garbage
+          node.setState(solution, StateLattice.setHeap(state, HeapLattice.retainObjects(StateLattice.getHeap(state), live)))
+        }
+    }
+  }
+
+  /**
+    * The labels referenced from the stack, along with the modules (which are looked up by name)
+    * and the builtin object class. None if some part of the stack is top.
+    */
+  private def roots(state: StateLattice.Elt, heap: Map[ObjectLabel, ObjectLattice.Elt]): Option[Set[ObjectLabel]] = {
+    val executionContexts = StateLattice.getExecutionContexts(state)
+    val registers = StackLattice.getStackFrame(StateLattice.getStack(state))
+
+    (executionContexts, registers) match {
+      case (null, _) | (_, StackFrameLattice.Top()) => None
+      case (_, StackFrameLattice.Concrete(registers)) =>
+        val modules = heap.keySet.filter(_.isInstanceOf[ModuleScopeObjectLabel])
+        val scopeChains = ExecutionContextLattice.getVariableObjectsOnScopeChains(executionContexts).flatten
+        registers.values.foldLeft(Option(modules ++ scopeChains + BuiltIn.objectLabel)) {(acc, value) =>
+          val labels = ValueLattice.getObjectLabels(value)
+          if (acc == None || labels == null) None else Some(acc.get ++ labels)
+        }
+      case _ => None
+    }
+  }
+
+  /**
+    * The labels reachable from roots through property values, scope chains, and the labels
+    * that are part of other labels (e.g. the instance of a bound method). Returns all labels
+    * of the heap if an object with top properties or scope chains is reached.
+    */
+  def reachable(roots: Set[ObjectLabel], heap: Map[ObjectLabel, ObjectLattice.Elt]): Set[ObjectLabel] = {
+    var live = Set[ObjectLabel]()
+    var pending = roots.toList
+
+    while (!pending.isEmpty) {
+      val label = pending.head
+      pending = pending.tail
+
+      if (!live.contains(label)) {
+        live = live + label
+
+        val obj = heap.getOrElse(label, ObjectLattice.bottom)
+        val scopeChains = ObjectLattice.getScopeChain(obj)
+        ObjectLattice.getProperties(obj) match {
+          case PropertiesLattice.Concrete(properties) if scopeChains != null =>
+            pending = properties.values.foldLeft(embeddedLabels(label) ++ scopeChains.flatten ++ pending) {(acc, property) =>
+              val labels = ValueLattice.getObjectLabels(PropertyLattice.getValue(property))
+              if (labels == null) return heap.keySet else labels.toList ++ acc
+            }
+
+          case _ =>
+            return heap.keySet
+        }
+      }
+    }
+
+    live.filter(heap.contains)
+  }
+
+  private def embeddedLabels(label: ObjectLabel): List[ObjectLabel] = label match {
+    case label: BoundMethodObjectLabel => List(label.instance, label.functionLabel)
+    case label: UnboundMethodObjectLabel => List(label.functionLabel)
+    case label: WrapperObjectLabel => List(label.label)
+    case label: NewStyleInstanceObjectLabel => List(label.classLabel)
+    case label: OldStyleInstanceObjectLabel => List(label.classLabel)
+    case label: NewStyleClassObjectLabel => label.bases.flatten
+    case label: OldStyleClassObjectLabel => label.bases.flatten
+    case _ => List()
+  }
+}
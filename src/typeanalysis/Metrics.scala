@@ -0,0 +1,182 @@
+package tapy.typeanalysis
+
+import java.io._
+import tapy.cfg._
+import tapy.lattices._
+import scala.collection.mutable.HashMap
+
+/**
+ * Instrumentation of a run of the analysis (see Options.metrics). Records the visits of the
+ * constraints and the time spent in them, by node class and by the function or module that
+ * the node belongs to, the number of times the state of each node changed, the number of
+ * heap objects and properties of the states, and the growth of the call graph.
+ *
+ * The report is written as JSON or CSV (by the extension of the file), such that the
+ * reports of different versions of the analysis can be compared.
+ */
+class Metrics {
+
+  // Totals of the visits of a group of nodes; the sizes are those of the states after the visits
+  private class Totals {
+    var visits: Long = 0
+    var nanos: Long = 0
+    var changes: Long = 0
+    var objects: Long = 0
+    var properties: Long = 0
+    var maxObjects: Long = 0
+    var maxProperties: Long = 0
+  }
+
+  private val started = System.nanoTime()
+
+  private val kinds = HashMap[String, Totals]()
+  private val owners = HashMap[String, Totals]()
+  private val nodes = HashMap[Node, Totals]()
+
+  // The number of call graph edges each time it grew, as (visits, ms, edges), most recent first
+  private var callGraphSizes: List[(Long, Long, Int)] = Nil
+
+  private var visits: Long = 0
+
+  // The function or module of each node of a CFG, computed again when the CFG grows
+  private var ownerMap: (ControlFlowGraph, Map[Node, String]) = null
+
+  /** Records a visit of node that took nanos, and the size of the state it resulted in. */
+  def visit(node: Node, cfg: ControlFlowGraph, nanos: Long, state: StateLattice.Elt): Unit = {
+    visits += 1
+
+    val (objects, properties) = StateLattice.getHeap(state) match {
+      case HeapLattice.Concrete(heap) =>
+        heap.foldLeft((heap.size.toLong, 0L)) {(acc, entry) =>
+          ObjectLattice.getProperties(entry._2) match {
+            case PropertiesLattice.Concrete(m) => (acc._1, acc._2 + m.size)
+            case _ => acc
+          }
+        }
+      case _ => (0L, 0L)
+    }
+
+    List(getTotals(kinds, node.getClass().getSimpleName()), getTotals(owners, getOwner(node, cfg)), getTotals(nodes, node)).foreach {(totals) =>
+      totals.visits += 1
+      totals.nanos += nanos
+      totals.objects += objects
+      totals.properties += properties
+      totals.maxObjects = math.max(totals.maxObjects, objects)
+      totals.maxProperties = math.max(totals.maxProperties, properties)
+    }
+  }
+
+  /** Records the nodes whose state changed when a solution was committed, and the call graph. */
+  def commit(changedNodes: Set[Node], cfg: ControlFlowGraph, callGraph: CallGraphLattice.Elt): Unit = {
+    changedNodes.foreach {(node) =>
+      List(getTotals(kinds, node.getClass().getSimpleName()), getTotals(owners, getOwner(node, cfg)), getTotals(nodes, node)).foreach(_.changes += 1)
+    }
+
+    val edges = if (callGraph == null) 0 else callGraph.size
+    if (callGraphSizes.headOption.forall(_._3 != edges))
+      callGraphSizes = (visits, elapsed(), edges) :: callGraphSizes
+  }
+
+  /** Writes the report to file, as CSV if its name ends with .csv and as JSON otherwise. */
+  def write(file: File): Unit = {
+    val out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)))
+    try {
+      if (file.getName().endsWith(".csv")) writeCsv(out) else writeJson(out)
+    } finally {
+      out.close()
+    }
+  }
+
+  private def getTotals[K](map: HashMap[K, Totals], key: K): Totals = map.getOrElseUpdate(key, new Totals())
+
+  private def elapsed(): Long = (System.nanoTime() - started) / 1000000
+
+  /**
+   * The function or module of node: the function or module whose entry node reaches it
+   * through the edges of the CFG, without passing another entry node. Function bodies are
+   * only reached through the call graph, so a module does not reach the bodies of its
+   * functions, and an imported module reaches the entry of the module that imports it.
+   */
+  private def getOwner(node: Node, cfg: ControlFlowGraph): String = {
+    if (ownerMap == null || !(ownerMap._1 eq cfg)) {
+      val entries = cfg.nodes.toList.collect {
+        case entry: FunctionEntryNode => (entry, "function " + entry.name)
+        case entry: ModuleEntryNode => (entry, "module " + entry.name)
+      }
+
+      val entryNodes = entries.map(_._1).toSet[Node]
+
+      def visit(pending: List[Node], owner: String, acc: Map[Node, String]): Map[Node, String] = pending match {
+        case Nil => acc
+        case node :: rest if acc.contains(node) || entryNodes.contains(node) => visit(rest, owner, acc)
+        case node :: rest => visit(successors(node) ++ rest, owner, acc + (node -> owner))
+      }
+      def successors(node: Node): List[Node] = (cfg.getSuccessors(node) ++ cfg.getExceptionSuccessors(node)).toList
+
+      ownerMap = (cfg, entries.foldLeft(Map[Node, String]()) {(acc, entry) => visit(successors(entry._1), entry._2, acc + (entry._1 -> entry._2))})
+    }
+    ownerMap._2.getOrElse(node, "?")
+  }
+
+  /*
+   * Reports
+   */
+
+  private def sorted[K](map: HashMap[K, Totals]): List[(K, Totals)] = map.toList.sortBy(-_._2.nanos)
+
+  private def writeJson(out: PrintStream): Unit = {
+    def group[K](map: HashMap[K, Totals], name: K => String): String =
+      sorted(map).map {(entry) => "    " + quote(name(entry._1)) + ": " + totalsToJson(entry._2)}.mkString("{\n", ",\n", "\n  }")
+
+    out.println("{")
+    out.println("  \"visits\": " + visits + ",")
+    out.println("  \"ms\": " + elapsed() + ",")
+    out.println("  \"nodeKinds\": " + group(kinds, {(kind: String) => kind}) + ",")
+    out.println("  \"owners\": " + group(owners, {(owner: String) => owner}) + ",")
+    out.println("  \"nodes\": " + sorted(nodes).map {(entry) =>
+      "{\"kind\": " + quote(entry._1.getClass().getSimpleName()) + ", \"node\": " + quote(entry._1.toString) + ", \"totals\": " + totalsToJson(entry._2) + "}"
+    }.mkString("[\n    ", ",\n    ", "\n  ]") + ",")
+    out.println("  \"callGraph\": " + callGraphSizes.reverse.map {(size) =>
+      "{\"visits\": " + size._1 + ", \"ms\": " + size._2 + ", \"edges\": " + size._3 + "}"
+    }.mkString("[\n    ", ",\n    ", "\n  ]"))
+    out.println("}")
+  }
+
+  private def totalsToJson(totals: Totals): String =
+    "{\"visits\": " + totals.visits + ", \"ms\": " + format(totals.nanos / 1e6) + ", \"changes\": " + totals.changes +
+      ", \"avgObjects\": " + format(average(totals.objects, totals.visits)) + ", \"avgProperties\": " + format(average(totals.properties, totals.visits)) +
+      ", \"maxObjects\": " + totals.maxObjects + ", \"maxProperties\": " + totals.maxProperties + "}"
+
+  private def writeCsv(out: PrintStream): Unit = {
+    out.println("section,name,visits,ms,changes,avg_objects,avg_properties,max_objects,max_properties,call_edges")
+
+    def group[K](section: String, map: HashMap[K, Totals], name: K => String): Unit =
+      sorted(map).foreach {(entry) =>
+        val totals = entry._2
+        out.println(List(section, quoteCsv(name(entry._1)), totals.visits, format(totals.nanos / 1e6), totals.changes,
+                         format(average(totals.objects, totals.visits)), format(average(totals.properties, totals.visits)),
+                         totals.maxObjects, totals.maxProperties, "").mkString(","))
+      }
+
+    group("kind", kinds, {(kind: String) => kind})
+    group("owner", owners, {(owner: String) => owner})
+    group("node", nodes, {(node: Node) => node.getClass().getSimpleName() + " " + node})
+    callGraphSizes.reverse.foreach {(size) =>
+      out.println(List("callgraph", "", size._1, size._2, "", "", "", "", "", size._3).mkString(","))
+    }
+  }
+
+  private def average(sum: Long, count: Long): Double = if (count == 0) 0 else sum.toDouble / count
+
+  private def format(value: Double): String = "%.2f".formatLocal(java.util.Locale.ROOT, value)
+
+  private def quote(str: String): String =
+    str.flatMap {
+      case '"' => "\\\""
+      case '\\' => "\\\\"
+      case c if c < ' ' => "\\u%04x".format(c.toInt)
+      case c => c.toString
+    }.mkString("\"", "", "\"")
+
+  private def quoteCsv(str: String): String = "\"" + str.replace("\"", "\"\"") + "\""
+}
@@ -11,12 +11,19 @@ import tapy.lattices._
 import tapy.exceptions._
 import tapy.constants
 import scala.collection.JavaConversions._
+import java.io.File
 
 trait Modules extends Environment with Logger {
   var worklist: Worklist[AnalysisLattice.Elt]
+  var transformedReadPropertyNodes: Set[ReadPropertyNode]
+  
+  val options: Options
   
   var loadedModules: Set[String] = Set()
   
+  // States that are joined into the states of nodes, see TypeAnalysis.join
+  var seededStates: Map[Node, StateLattice.Elt] = Map()
+  
   type Elt = AnalysisLattice.Elt
   
   def handleModuleEntry(node: ModuleEntryNode, solution: Elt): Elt = {
@@ -49,17 +56,63 @@ trait Modules extends Environment with Logger {
       // Add the module to the CFG
       loadedModules = loadedModules + moduleQualifiedName
 
-      val moduleCfg = worklist.getCFG(ASTPrettyPrinter.implodeStringList(node.names, "\\", false))
+      val snapshot = options.builtinSnapshot match {
+        case Some(dir) if moduleQualifiedName == "__builtin__" => BuiltinSnapshot.get(new File(dir), worklist, options)
+        case _ => None
+      }
+
+      val moduleCfg = snapshot match {
+        case Some(snapshot) => snapshot.cfg
+        case None => worklist.getCFG(ASTPrettyPrinter.implodeStringList(node.names, "\\", false))
+      }
       
       // Update the environment
       this.environmentVariables = this.environmentVariables ++ Environment.buildVariables(moduleCfg)
       this.environmentProperties = this.environmentProperties ++ Environment.buildProperties(moduleCfg)
+      this.scopeResolutions = this.scopeResolutions ++ Environment.buildResolutions(moduleCfg)
       
       // Combine the newly constructed CFG with the current one
       val newCfg = worklist.cfg.insert(moduleCfg, Set[Node](), worklist.cfg.entryNodes)
-      worklist.setCFG(newCfg, moduleCfg)
+
+      snapshot match {
+        case Some(snapshot) =>
+          // Resume the analysis of the module at its exit nodes
+          log("ImportNode", "Using the snapshot of " + moduleQualifiedName)
+          val properties = this.environmentProperties -- Environment.buildProperties(moduleCfg)
+          seededStates = snapshot.states.foldLeft(seededStates) {(acc, entry) => acc + (entry._1 -> declareProperties(entry._2, properties))}
+          transformedReadPropertyNodes = transformedReadPropertyNodes ++ snapshot.transformedReadPropertyNodes
+          worklist.setCFG(newCfg, moduleCfg.setEntryNodes(snapshot.states.keySet))
+          return importModule(node, moduleName, moduleQualifiedName, AnalysisLattice.updateCallGraph(solution, snapshot.callGraph))
+
+        case None =>
+          worklist.setCFG(newCfg, moduleCfg)
+      }
     }
     
+    importModule(node, moduleName, moduleQualifiedName, solution)
+  }
+  
+  /**
+    * Declares properties as undefined on the classes of state, like handleClassDeclNode does
+    * for the properties of the environment. The classes of a snapshot were declared before
+    * the properties of the importing program were known.
+    */
+  private def declareProperties(state: StateLattice.Elt, properties: Set[String]): StateLattice.Elt = StateLattice.getHeap(state) match {
+    case HeapLattice.Concrete(heap) if !properties.isEmpty =>
+      val newHeap = heap.foldLeft(heap) {(acc, entry) =>
+        (entry._1, ObjectLattice.getProperties(entry._2)) match {
+          case (_: NewStyleClassObjectLabel | _: OldStyleClassObjectLabel, PropertiesLattice.Concrete(classProperties)) =>
+            acc + (entry._1 -> (properties -- classProperties.keySet).foldLeft(entry._2) {(obj, property) =>
+              ObjectLattice.updatePropertyValue(property, ValueLattice.undefined, obj)
+            })
+          case _ => acc
+        }
+      }
+      StateLattice.setHeap(state, HeapLattice.Concrete(newHeap))
+    case _ => state
+  }
+  
+  private def importModule(node: ImportNode, moduleName: String, moduleQualifiedName: String, solution: Elt): Elt = {
     val tmp = Utils.writePropertyValueOnVariableObjects(node, moduleName,
       ValueLattice.setObjectLabels(Set(ModuleScopeObjectLabel(moduleQualifiedName))), solution, true)
     
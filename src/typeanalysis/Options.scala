@@ -0,0 +1,48 @@
+package tapy.typeanalysis
+
+import tapy.dfa.Worklist
+
+/**
+ * Settings of the type analysis, given as command line flags (see Main).
+ *
+ * garbageCollection: Remove heap objects that are unreachable at function exits and after calls
+ * functionSummaries: Take the result of calls from the exits of the callee when its entry subsumes the call
+ * contextDepth: Length of the call strings (or receiver lists) that functions are analyzed in (0 for none)
+ * objectSensitivity: Take the receivers of method calls as contexts rather than the call nodes
+ * maxContexts: Number of contexts of a function after which its calls share one context
+ * basicBlocks: Evaluate straight-line chains of nodes as blocks, storing states only at their ends
+ * widenAfter: Number of visits of a loop head after which its state is widened (0 for none)
+ * maxVisits: Number of node visits after which the analysis gives up with top (0 for no limit)
+ * timeLimit: Milliseconds after which the analysis gives up with top (0 for no limit)
+ * jobs: Number of files of a directory that are analyzed in parallel
+ * cfgCache: Directory in which the CFGs of imported modules are cached between runs
+ * builtinSnapshot: Directory in which the analyzed __builtin__ module is kept between runs
+ * metrics: Format (json or csv) of the report of visits, timings and state sizes written next to each file
+ * progressInterval: Milliseconds between the progress lines of the worklist on stderr (0 for none)
+ */
+case class Options(garbageCollection: Boolean = false,
+                   functionSummaries: Boolean = false,
+                   contextDepth: Int = 0,
+                   objectSensitivity: Boolean = false,
+                   maxContexts: Int = 8,
+                   basicBlocks: Boolean = false,
+                   widenAfter: Int = Worklist.DEFAULT_WIDEN_AFTER,
+                   maxVisits: Int = 0,
+                   timeLimit: Long = 0,
+                   jobs: Int = Options.DEFAULT_JOBS,
+                   cfgCache: Option[String] = None,
+                   builtinSnapshot: Option[String] = None,
+                   metrics: Option[String] = None,
+                   progressInterval: Long = 0) {
+
+  /**
+   * The settings that affect the result of an analysis, i.e. all but the ones of the
+   * parallelism, the caches and the output, which are set to their defaults.
+   */
+  def analysisSettings: Options =
+    copy(jobs = Options.DEFAULT_JOBS, cfgCache = None, builtinSnapshot = None, metrics = None, progressInterval = 0)
+}
+
+object Options {
+  val DEFAULT_JOBS = Runtime.getRuntime().availableProcessors()
+}
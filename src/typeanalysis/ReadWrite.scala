@@ -12,7 +12,7 @@ import tapy.exceptions._
 import tapy.constants
 import scala.collection.JavaConversions._
 
-trait ReadWrite extends Exceptions with Logger {
+trait ReadWrite extends Exceptions with Environment with Logger {
   
   /**
     * Variables
@@ -20,8 +20,9 @@ trait ReadWrite extends Exceptions with Logger {
   
   def handleReadVariableNode(node: ReadVariableNode, solution: Elt): Elt = {
     try {
-      val lookup = Utils.findPropertyValueInScope(node, node.variable, solution)
-      val prop = Utils.findPropertyInScope(node, node.variable, solution)
+      val lookups = scopeResolutions.get(node).map(_.lookups).getOrElse(Nil)
+      val prop = Utils.findPropertyInScope(node.variable, node.getState(solution), lookups)
+      val lookup = PropertyLattice.getValue(prop)
 
       if (PropertyLattice.isGlobal(prop)) {
         val getLast = {(l: List[ObjectLabel]) => l.last}
@@ -66,10 +67,15 @@ trait ReadWrite extends Exceptions with Logger {
   }
   
   def handleWriteVariableNode(node: WriteVariableNode, solution: Elt): Elt = {
-    val lookup = Utils.findPropertyInScope(node, node.variable, solution)
     val value = StackFrameLattice.getRegisterValue(node.getStackFrame(solution), node.valueReg)
 
-    if (PropertyLattice.isGlobal(lookup)) {
+    // The variable is declared in the scope of the node, so it is local unless the scope declares it global
+    val global = scopeResolutions.get(node) match {
+      case Some(resolution) if !resolution.global => false
+      case _ => PropertyLattice.isGlobal(Utils.findPropertyInScope(node, node.variable, solution))
+    }
+
+    if (global) {
       val getLast = {(l: List[ObjectLabel]) => l.last}
       val varGlobalObjLabels = ExecutionContextLattice.getVariableObjectsOnScopeChains(node.getExecutionContexts(solution)).map(getLast)
 
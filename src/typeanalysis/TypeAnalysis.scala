@@ -12,14 +12,21 @@ import tapy.exceptions._
 import tapy.constants
 import scala.collection.JavaConversions._
 
-class TypeAnalysis(cfg: ControlFlowGraph)
+class TypeAnalysis(cfg: ControlFlowGraph, val options: Options = Options())
 extends Analysis[AnalysisLattice.Elt]
-with ClassFunctionDecls with Calls with Constants with Operators with Modules with Environment with Exceptions with Logger with ReadWrite with PathSensivity {
+with ClassFunctionDecls with Calls with Constants with Operators with Modules with Environment with Exceptions with Logger with ReadWrite with PathSensivity with GarbageCollection with ContextSensitivity {
   
   override type Elt = AnalysisLattice.Elt
   
   override var environmentVariables = Environment.buildVariables(cfg)
   override var environmentProperties = Environment.buildProperties(cfg)
+  override var scopeResolutions = Environment.buildResolutions(cfg)
+
+  // Instrumentation of the run, see Options.metrics
+  val metrics: Metrics = if (options.metrics.isDefined) new Metrics() else null
+
+  // The linearizations of the classes of this analysis
+  val classMRO = new ClassMRO()
   
   /* Analysis interface */
   
@@ -56,13 +63,13 @@ with ClassFunctionDecls with Calls with Constants with Operators with Modules wi
     case node: ClassExitNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleClassExitNode(node, solution)))}
     case node: FunctionDeclNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleFunctionOrUnboundMethodDeclNode(node, solution)))}
     case node: FunctionEntryNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleFunctionEntryNode(node, solution)))}
-    case node: FunctionExitNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleFunctionExitNode(node, solution)))}
+    case node: FunctionExitNode => {(solution) => constraintWrapper(node, solution, ((solution) => collectGarbage(node, handleFunctionExitNode(node, solution))))}
     case node: ExceptionalExitNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleExceptionalExitNode(node, solution)))}
     
     // Calls
     case node: CallNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleCallNode(node, solution)))}
     case node: ReturnNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleReturnNode(node, solution)))}
-    case node: AfterCallNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleAfterCallNode(node, solution)))}
+    case node: AfterCallNode => {(solution) => constraintWrapper(node, solution, ((solution) => collectGarbage(node, handleAfterCallNode(node, solution))))}
 
     // Exceptions
     case node: RaiseNode => {(solution) => constraintWrapper(node, solution, ((solution) => handleRaiseNode(node, solution)))}
@@ -77,14 +84,69 @@ with ClassFunctionDecls with Calls with Constants with Operators with Modules wi
   }
   
   def constraintWrapper(node: Node, solution: Elt, constraint: Elt => Elt): Elt = {
-   val newSolution = constraint(join(node, solution))
+    if (metrics == null)
+      return pruneDeadRegisters(node, constraint(join(node, solution)))
+
+    val start = System.nanoTime()
+    val newSolution = pruneDeadRegisters(node, constraint(join(node, solution)))
+    metrics.visit(node, worklist.cfg, System.nanoTime() - start, node.getState(newSolution))
     newSolution
   }
   
+  /**
+   * Removes the registers that are not read after node, such that they are not carried
+   * along (and joined) through the rest of the CFG.
+   */
+  def pruneDeadRegisters(node: Node, solution: Elt): Elt = {
+    if (liveness == null || !(liveness._1 eq worklist.cfg))
+      liveness = (worklist.cfg, new RegisterLiveness(worklist.cfg))
+    
+    val stackFrame = node.getStackFrame(solution)
+    val newStackFrame = StackFrameLattice.retainRegisters(stackFrame, {(reg) => liveness._2.isLive(node, reg)})
+    if (newStackFrame eq stackFrame)
+      solution
+    else
+      node.setStack(solution, StackLattice.setStackFrame(node.getStack(solution), newStackFrame))
+  }
+  
+  // Liveness of the registers in the current CFG (the CFG grows when modules are imported)
+  private var liveness: (ControlFlowGraph, RegisterLiveness) = null
+  
+  /**
+   * Only the states written by the constraint are compared (see ProgramStateLattice.commit),
+   * instead of comparing the entire program state.
+   */
+  override def commit(node: Node, solution: Elt, newSolution: Elt): (Elt, Boolean) = {
+    val (programState, changedNodes) = ProgramStateLattice.commit(AnalysisLattice.getProgramState(newSolution))
+    val oldCallGraph = AnalysisLattice.getCallGraph(solution)
+    val newCallGraph = AnalysisLattice.getCallGraph(newSolution)
+    val changed = !changedNodes.isEmpty || CallGraphLattice.hasGrown(oldCallGraph, newCallGraph)
+    if (metrics != null)
+      metrics.commit(changedNodes, worklist.cfg, newCallGraph)
+    ((programState, newCallGraph), changed)
+  }
+
+  override def widen(node: Node, solution: Elt, newSolution: Elt): Elt =
+    node.setState(newSolution, StateLattice.widen(node.getState(solution), node.getState(newSolution)))
+
+  /**
+   * A block ends at the nodes that may change the CFG or the call graph, such that the
+   * worklist sees these changes, and at the nodes that join more than their predecessor.
+   */
+  override def extendsBlock(pred: Node, node: Node): Boolean = (pred, node) match {
+    case (_: CallNode | _: ImportNode | _: ReadPropertyNode, _) => false
+    case (_, _: AfterCallNode | _: ExceptNode | _: ExceptionalExitNode) => false
+    case _ => !seededStates.contains(node)
+  }
+
+  override def discard(node: Node, solution: Elt): Elt =
+    (ProgramStateLattice.discard(AnalysisLattice.getProgramState(solution), node), AnalysisLattice.getCallGraph(solution))
+
   def nodeDependencies(node: Node, solution: Elt): Set[Node] = {
     return worklist.cfg.getSuccessors(node) ++ worklist.cfg.getExceptionSuccessors(node) ++
         CallGraphLattice.getSuccessors(AnalysisLattice.getCallGraph(solution), node) ++
-        CallGraphLattice.getExceptionSuccessors(AnalysisLattice.getCallGraph(solution), node)
+        CallGraphLattice.getExceptionSuccessors(AnalysisLattice.getCallGraph(solution), node) ++
+        summaryUsers.getOrElse(node, Set())
   }
   
   /**
@@ -126,7 +188,10 @@ with ClassFunctionDecls with Calls with Constants with Operators with Modules wi
         StateLattice.updateStackFrame(tmp, StackConstants.EXCEPTION, ValueLattice.bottom, true)
     }
     
-    AnalysisLattice.setState(solution, node, state)
+    seededStates.get(node) match {
+      case Some(seed) => AnalysisLattice.setState(solution, node, StateLattice.leastUpperBound(state, seed))
+      case None => AnalysisLattice.setState(solution, node, state)
+    }
   }
 
   def handleGlobalNode(node: GlobalNode, solution: Elt): Elt = {
@@ -35,19 +35,26 @@ object Utils {
     PropertyLattice.getValue(findPropertyInScope(property, state))
   
   def findPropertyInScope(node: Node, property: String, solution: Elt): PropertyLattice.Elt = findPropertyInScope(property, node.getState(solution))
-  def findPropertyInScope(property: String, state: StateLattice.Elt): PropertyLattice.Elt = {
+
+  /**
+   * The property of the first object on each scope chain that has it. lookups tells which
+   * objects of a chain can have the property, from the variable object out (see
+   * ScopeResolution); the objects beyond it are all looked up.
+   */
+  def findPropertyInScope(property: String, state: StateLattice.Elt, lookups: List[Boolean] = Nil): PropertyLattice.Elt = {
     val chains = ExecutionContextLattice.getVariableObjectsOnScopeChains(StackLattice.getExecutionContext(StateLattice.getStack(state)))
     
-    // TODO: What if the property is only found in one of the chains? Should add result to also be undefined...
-    chains.foldLeft(PropertyLattice.bottom) {(acc, chain) =>
-      val value = chain.foldLeft(PropertyLattice.bottom) {(acc, objectLabel) =>        
-        if (acc != PropertyLattice.bottom)
-          acc
-        else
-          ObjectLattice.getProperty(StateLattice.getHeapObject(state, objectLabel), property)
-      }
-      PropertyLattice.leastUpperBound(value, acc)
+    def find(chain: List[ObjectLabel], lookups: List[Boolean]): PropertyLattice.Elt = chain match {
+      case Nil => PropertyLattice.bottom
+      case objectLabel :: rest =>
+        val value =
+          if (lookups.isEmpty || lookups.head) ObjectLattice.getProperty(StateLattice.getHeapObject(state, objectLabel), property)
+          else PropertyLattice.bottom
+        if (value != PropertyLattice.bottom) value else find(rest, if (lookups.isEmpty) lookups else lookups.tail)
     }
+    
+    // TODO: What if the property is only found in one of the chains? Should add result to also be undefined...
+    chains.foldLeft(PropertyLattice.bottom) {(acc, chain) => PropertyLattice.leastUpperBound(find(chain, lookups), acc)}
   }
   
   def writePropertyValueOnObjectLabelToHeap(node: Node, property: String, objectLabel: ObjectLabel, value: ValueLattice.Elt, solution: Elt, strong: Boolean = false): Elt =
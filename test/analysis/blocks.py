@@ -0,0 +1,15 @@
+# Straight-line chains of nodes are evaluated as blocks, which only store the states at
+# their ends
+# run blocks: --blocks
+# expect: x = 1
+# expect: y = 3
+# expect: z = 6
+# expect default: @states > 50
+# expect blocks: @states < 20
+x = 1
+y = x + 2
+z = x * y
+if y > 2:
+	z = y * 2
+else:
+	x = "s"
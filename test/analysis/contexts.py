@@ -0,0 +1,32 @@
+# Call strings (and receivers) keep the calls of a function apart
+# run k1: --context-depth=1
+# run k2: --context-depth=2
+# run object: --context-depth=1 --object-sensitive
+# expect default: a = undefined, 1, 's'
+# expect default: b = undefined, 1, 's'
+# expect default: @copies = 0
+# expect k1: a = 1
+# expect k1: b = 's'
+# expect k1: c = undefined, 1, 's'
+# expect k1: @copies > 0
+# expect k2: c = 1
+# expect k2: d = 's'
+# expect object: e = undefined, 1
+# expect object: f = undefined, 's'
+def id(v):
+	return v
+
+def wrap(v):
+	return id(v)
+
+class Box(object):
+	def set(self, v):
+		self.v = v
+		return self
+
+a = id(1)
+b = id("s")
+c = wrap(1)
+d = wrap("s")
+e = Box().set(1).v
+f = Box().set("s").v
@@ -0,0 +1,21 @@
+# Garbage collection removes the scope objects of the calls and the objects that are only
+# reachable from them, without changing the result
+# run gc: --gc
+# expect: a = undefined, Set(New Style Instance C)
+# expect: b = undefined, 1, 's'
+# expect: c = undefined, 1, 's'
+# expect default: @collected = 0
+# expect gc: @collected > 0
+class C(object):
+	pass
+
+def make(v):
+	tmp = C()
+	tmp.v = v
+	kept = C()
+	kept.v = tmp.v
+	return kept
+
+a = make(1)
+b = make("s").v
+c = a.v
@@ -0,0 +1,14 @@
+# A call whose arguments are subsumed by the entry of the callee takes its result from the
+# exit of the callee
+# run summaries: --summaries
+# expect: a = undefined, integer
+# expect: b = undefined, integer
+# expect: c = integer
+# expect default: @hits = 0
+# expect summaries: @hits > 0
+def inc(x):
+	return x + 1
+
+a = inc(1)
+b = inc(1)
+c = inc(2)
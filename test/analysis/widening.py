@@ -0,0 +1,26 @@
+# A loop head that is visited more often than --widen-after times is widened: the integers
+# that first become concrete there go to abstract. c becomes 5 on the second visit of the
+# loop head, b on the third and a on the fourth. Without widening they stay 5. The analysis
+# gives up with top once it exhausts the budget of --max-visits
+# run widen1: --widen-after=1
+# run widen2: --widen-after=2
+# run budget: --max-visits=10
+# expect default: a = None, 5
+# expect default: b = None, 5
+# expect default: c = None, 5
+# expect widen1: a = None, integer
+# expect widen1: c = None, integer
+# expect widen2: a = None, integer
+# expect widen2: b = None, integer
+# expect widen2: c = None, 5
+# expect budget: @exhausted = 1
+# expect budget: x = top
+x = 0
+a = None
+b = None
+c = None
+while x < 100:
+	x = x + 1
+	a = b
+	b = c
+	c = 5
@@ -0,0 +1,14 @@
+# The worklist takes the nodes in the order of the CFG, such that the nodes after a loop
+# (and after the branches in it) are only evaluated once the loop is stable
+# expect: x = integer
+# expect: y = integer
+# expect: @visits < 150
+x = 0
+i = 0
+while i < 10:
+	if i > 5:
+		x = x + 2
+	else:
+		x = x + 1
+	i = i + 1
+y = x
@@ -0,0 +1,112 @@
+package tapy.tests
+
+import java.io.File
+import scala.io.Source
+import tapy.Main
+import tapy.cfg._
+import tapy.dfa._
+import tapy.lattices._
+import tapy.typeanalysis._
+
+/**
+ * Analyzes the programs of test/analysis that state their expected results, in comments of
+ * the form
+ *
+ *   # run NAME: FLAGS                  an analysis with the given command line flags, besides
+ *                                      the one without flags (named default)
+ *   # expect: VARIABLE = VALUE         the value of a module variable at the exit of every run
+ *   # expect NAME: VARIABLE = VALUE    the same for the run NAME only
+ *   # expect NAME: @COUNTER OP N       a counter of the run NAME, compared (OP is <, = or >) to
+ *                                      a number or another counter
+ *
+ * where a value is written as by ValueLattice.toString, and the counters are visits, nodes (of
+ * the final CFG), states (that are stored, see --blocks), collected (heap objects, see --gc),
+ * hits and misses (of function summaries), copies (of functions in contexts) and exhausted (1
+ * if the budget was exhausted). A variable of a run whose heap is top is top.
+ */
+object AnalysisTests extends Suite {
+
+  private val Run = "# run ([\\w-]+): (.*)".r
+  private val Expect = "# expect( [\\w-]+)?: (.*)".r
+  private val Variable = "(\\w+) = (.*)".r
+  private val Counter = "@(\\w+) ([<=>]) (@?\\w+)".r
+
+  case class Result(analysis: TypeAnalysis, worklist: Worklist[AnalysisLattice.Elt], cfg: ControlFlowGraph, solution: AnalysisLattice.Elt) {
+
+    def exhausted: Boolean = worklist.exhausted
+
+    /** The value of a module variable at the exit, as by ValueLattice.toString. */
+    def value(variable: String): String = {
+      val exit = cfg.exitNodes.head
+      AnalysisLattice.getHeap(exit, worklist.materialize(exit, solution)) match {
+        case heap @ HeapLattice.Concrete(_) =>
+          ValueLattice.toString(ObjectLattice.getPropertyValue(HeapLattice.getObject(heap, ModuleScopeObjectLabel("__main__")), variable))
+        case _ => "top"
+      }
+    }
+
+    def counter(name: String): Long = name match {
+      case "visits" => worklist.visits
+      case "nodes" => worklist.cfg.nodes.size
+      case "states" => ProgramStateLattice.getStates(AnalysisLattice.getProgramState(solution)).size
+      case "collected" => analysis.collectedObjects
+      case "hits" => analysis.summaryHits
+      case "misses" => analysis.summaryMisses
+      case "copies" => analysis.contextCopies
+      case "exhausted" => if (worklist.exhausted) 1 else 0
+      case _ => throw new AssertionError("unknown counter @" + name)
+    }
+  }
+
+  /**
+   * Analyzes file, with the CFGs of cfgCache if one is given; the object labels of two
+   * analyses that share a cache are comparable, as their CFGs have the same nodes.
+   */
+  def analyze(file: File, options: Options, cfgCache: CFGCache = null): Result = {
+    val cfg = if (cfgCache != null) cfgCache.getCFG(file, "__main__") else CFGCache.build(file, "__main__")
+    val analysis = new TypeAnalysis(cfg, options)
+    val worklist = new Worklist[AnalysisLattice.Elt](analysis, AnalysisLattice, cfg, file.getParent() + "/", options)
+    if (cfgCache != null)
+      worklist.cfgCache = cfgCache
+    Result(analysis, worklist, cfg, worklist.run())
+  }
+
+  private val programs = new File("test/analysis").listFiles().filter((file) => file.getName().endsWith(".py")).sortBy(_.getName()).filter {(file) =>
+    Source.fromFile(file).getLines().exists(_.startsWith("# expect"))
+  }
+
+  programs.foreach {(file) =>
+    val lines = Source.fromFile(file).getLines().toList
+    val runs = ("default" -> "") :: lines.collect({case Run(name, flags) => (name, flags)})
+    val expectations = lines.collect({case Expect(run, expectation) => (Option(run).map(_.trim), expectation)})
+
+    runs.foreach {(run) =>
+      val (name, flags) = run
+      test(file.getName() + " (" + name + ")") {
+        expectations.foreach {(expectation) =>
+          check(expectation._1.forall((run) => runs.exists(_._1 == run)), "no run " + expectation._1.get)
+        }
+
+        val result = analyze(file, Main.parseOptions(flags.split(" ").filter(_.nonEmpty)))
+        expectations.filter(_._1.forall(_ == name)).foreach {(expectation) =>
+          expectation._2 match {
+            case Variable(variable, value) =>
+              checkEqual(result.value(variable), value, variable)
+
+            case Counter(counter, op, other) =>
+              val actual = result.counter(counter)
+              val expected = if (other.startsWith("@")) result.counter(other.substring(1)) else other.toLong
+              check(op match {
+                case "<" => actual < expected
+                case "=" => actual == expected
+                case ">" => actual > expected
+              }, "@" + counter + " is " + actual + ", expected " + op + " " + other + (if (other.startsWith("@")) " (" + expected + ")" else ""))
+
+            case line =>
+              throw new AssertionError("cannot read the expectation " + line)
+          }
+        }
+      }
+    }
+  }
+}
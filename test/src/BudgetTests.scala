@@ -0,0 +1,40 @@
+package tapy.tests
+
+import java.io.{ByteArrayOutputStream, File}
+import java.nio.file.Files
+import tapy.Main
+import tapy.export.GraphvizFiles
+import tapy.typeanalysis._
+
+/**
+ * Main on an analysis that runs out of its budget: the result is reported as top, and the
+ * heap at the exit is exported as the top heap rather than failing or as an empty heap.
+ */
+object BudgetTests extends Suite {
+
+  test("Main reports and exports the top result of an exhausted analysis") {
+    val dir = programDir()
+    val file = write(dir, "loop.py", new String(Files.readAllBytes(new File("test/analysis/widening.py").toPath()), "UTF-8"))
+    val (options, mode) = (Main.options, GraphvizFiles.mode)
+    val (out, err) = (new ByteArrayOutputStream(), new ByteArrayOutputStream())
+    try {
+      Main.options = Options(maxVisits = 10)
+      GraphvizFiles.mode = GraphvizFiles.Dot
+      Console.withOut(out) {
+        Console.withErr(err) {
+          Main.analyzeFile(file)
+        }
+      }
+      GraphvizFiles.finish()
+    } finally {
+      Main.options = options
+      GraphvizFiles.mode = mode
+    }
+
+    check(out.toString("UTF-8").contains("analysis budget exhausted, the result is top"), "Main does not report the result as top")
+    checkEqual(err.toString("UTF-8"), "", "output on stderr")
+    val heap = new File(dir, "loop.heap.dot")
+    check(heap.isFile(), "the heap at the exit is not exported")
+    check(new String(Files.readAllBytes(heap.toPath()), "UTF-8").contains("Top"), "the exported heap is not the top heap")
+  }
+}
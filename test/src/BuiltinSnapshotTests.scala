@@ -0,0 +1,62 @@
+package tapy.tests
+
+import java.io.{File, IOException}
+import java.nio.file.Files
+import tapy.typeanalysis._
+
+/**
+ * The builtin snapshots: that they are keyed by the source and the settings that affect the
+ * analysis, and that an analysis from a snapshot has the result of the analysis without.
+ */
+object BuiltinSnapshotTests extends Suite {
+
+  test("the snapshot key covers the settings that affect the analysis") {
+    val source = "x = 1\n".getBytes("UTF-8")
+    val key = BuiltinSnapshot.key(source, Options())
+    val affecting = List(Options(garbageCollection = true), Options(functionSummaries = true), Options(contextDepth = 1),
+                         Options(objectSensitivity = true), Options(maxContexts = 4), Options(basicBlocks = true), Options(widenAfter = 3),
+                         Options(maxVisits = 1000), Options(timeLimit = 1000))
+    affecting.foreach((options) => check(BuiltinSnapshot.key(source, options) != key, "the key of " + options + " is the default key"))
+    checkEqual(affecting.map(BuiltinSnapshot.key(source, _)).distinct.size, affecting.size, "number of distinct keys")
+
+    val other = List(Options(jobs = 3), Options(cfgCache = Some("cache")), Options(builtinSnapshot = Some("snapshots")),
+                     Options(metrics = Some("json")), Options(progressInterval = 100))
+    other.foreach((options) => checkEqual(BuiltinSnapshot.key(source, options), key, "key of " + options))
+
+    check(BuiltinSnapshot.key("x = 2\n".getBytes("UTF-8"), Options()) != key, "the key of another source is the same")
+  }
+
+  test("the analysis from a builtin snapshot has the result of the analysis without") {
+    val dir = programDir()
+    val snapshotDir = tempDir()
+    val main = new File(dir, "main.py")
+    val expected = AnalysisTests.analyze(main, Options())
+    List("cold", "warm").foreach {(run) =>
+      val result = AnalysisTests.analyze(main, Options(builtinSnapshot = Some(snapshotDir.getPath())))
+      List("y", "z").foreach((variable) => checkEqual(result.value(variable), expected.value(variable), variable + " with a " + run + " snapshot"))
+    }
+    checkEqual(cacheFiles(snapshotDir, ".snapshot"), 1, "number of snapshots")
+
+    AnalysisTests.analyze(main, Options(builtinSnapshot = Some(snapshotDir.getPath()), garbageCollection = true))
+    checkEqual(cacheFiles(snapshotDir, ".snapshot"), 2, "number of snapshots after an analysis with other settings")
+  }
+
+  test("a corrupt snapshot fails to read with an IOException, on which it is rebuilt") {
+    val snapshotDir = tempDir()
+    AnalysisTests.analyze(new File(programDir(), "main.py"), Options(builtinSnapshot = Some(snapshotDir.getPath())))
+    val file = snapshotDir.listFiles().find(_.getName().endsWith(".snapshot")).get
+    val bytes = Files.readAllBytes(file.toPath())
+    check(BuiltinSnapshot.read(file).cfg.nodes.size > 0, "the snapshot has no CFG")
+
+    val damaged = (0 until bytes.length by math.max(1, bytes.length / 100)).map((i) => bytes.updated(i, (bytes(i) ^ 0x5a).toByte)) :+ bytes.take(bytes.length / 2)
+    damaged.foreach {(damage) =>
+      Files.write(file.toPath(), damage)
+      try {
+        BuiltinSnapshot.read(file)
+        check(false, "a corrupt snapshot is read")
+      } catch {
+        case _: IOException =>
+      }
+    }
+  }
+}
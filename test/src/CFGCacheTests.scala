@@ -0,0 +1,66 @@
+package tapy.tests
+
+import java.io.File
+import java.nio.file.Files
+import tapy.cfg._
+import tapy.typeanalysis._
+
+/**
+ * The cache of CFGs: that it is used, and that it misses once the source of a module changes.
+ */
+object CFGCacheTests extends Suite {
+
+  test("CFGCache keeps the CFG of a module until its source changes") {
+    val cacheDir = tempDir()
+    val dir = tempDir()
+    val file = write(dir, "module.py", "x = 1\n")
+    val cache = new CFGCache(cacheDir)
+
+    val cfg = cache.getCFG(file, "module")
+    check(cache.getCFG(file, "module") eq cfg, "the CFG is not kept in memory")
+    checkEqual(cacheFiles(cacheDir, ".cfg"), 1, "number of cache files")
+    checkEqual(new CFGCache(cacheDir).getCFG(file, "module").nodes.size, cfg.nodes.size, "number of nodes of the CFG read from disk")
+
+    write(dir, "module.py", "x = 1\ny = x + 2\n")
+    val changed = cache.getCFG(file, "module")
+    check(changed ne cfg, "the CFG of the changed module is the old one")
+    check(changed.nodes.size > cfg.nodes.size, "the CFG of the changed module is not the CFG of its new source")
+    checkEqual(cacheFiles(cacheDir, ".cfg"), 2, "number of cache files")
+  }
+
+  test("CFGCache rebuilds a corrupt entry") {
+    val cacheDir = tempDir()
+    val dir = tempDir()
+    val file = write(dir, "module.py", "class C(object):\n  def f(self, a):\n    return a\nx = C().f(1)\n")
+    val size = new CFGCache(cacheDir).getCFG(file, "module").nodes.size
+    val entry = cacheDir.listFiles().find(_.getName().endsWith(".cfg")).get
+    val bytes = Files.readAllBytes(entry.toPath())
+
+    // Damage every few bytes in turn, and truncate the entry
+    val damaged = (0 until bytes.length by 7).map((i) => bytes.updated(i, (bytes(i) ^ 0x5a).toByte)) :+ bytes.take(bytes.length / 2)
+    damaged.foreach {(damage) =>
+      Files.write(entry.toPath(), damage)
+      checkEqual(new CFGCache(cacheDir).getCFG(file, "module").nodes.size, size, "number of nodes of the CFG of a corrupt entry")
+      check(!Files.readAllBytes(entry.toPath()).sameElements(damage), "the corrupt entry is not rewritten")
+      checkEqual(CFGCache.read(entry).nodes.size, size, "number of nodes of the rewritten entry")
+    }
+  }
+
+  test("CFGCache keeps modules of the same source apart by their names") {
+    val dir = tempDir()
+    val file = write(dir, "module.py", "x = 1\n")
+    check(CFGCache.key(Files.readAllBytes(file.toPath()), "a") != CFGCache.key(Files.readAllBytes(file.toPath()), "b"), "the keys of two module names are equal")
+  }
+
+  test("the analysis with a CFG cache has the result of the analysis without") {
+    val dir = programDir()
+    val cacheDir = tempDir()
+    val main = new File(dir, "main.py")
+    val expected = AnalysisTests.analyze(main, Options())
+    List("cold", "warm").foreach {(run) =>
+      val result = AnalysisTests.analyze(main, Options(cfgCache = Some(cacheDir.getPath())))
+      List("y", "z").foreach((variable) => checkEqual(result.value(variable), expected.value(variable), variable + " with a " + run + " cache"))
+    }
+    check(cacheFiles(cacheDir, ".cfg") >= 2, "the modules are not cached")
+  }
+}
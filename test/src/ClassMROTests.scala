@@ -0,0 +1,62 @@
+package tapy.tests
+
+import java.io.File
+import tapy.cfg._
+import tapy.exceptions._
+import tapy.lattices._
+import tapy.typeanalysis._
+
+/**
+ * The memoized linearizations of ClassMRO, on the classes of an analyzed program.
+ */
+object ClassMROTests extends Suite {
+
+  // The example of the Python 2.3 method resolution order, where C has one of two bases
+  private val source = List(
+    "class F(object):", "  pass", "class G(object):", "  pass", "if x:", "  GF = F", "else:", "  GF = G",
+    "class E(object):", "  pass", "class D(object):", "  pass", "class C(D, GF):", "  pass",
+    "class B(D, E):", "  pass", "class A(B, C):", "  pass", "class H(D, B):", "  pass").mkString("", "\n", "\n")
+
+  private lazy val (state, classes) = {
+    val dir = programDir()
+    val result = AnalysisTests.analyze(write(dir, "mro.py", "x = raw_input()\n" + source), Options())
+    val exit = result.cfg.exitNodes.head
+    val state = AnalysisLattice.getState(exit, result.solution)
+    val module = StateLattice.getHeapObject(state, ModuleScopeObjectLabel("__main__"))
+    val classes = "ABCDEFGH".map {(name) =>
+      name.toString -> ValueLattice.getObjectLabels(ObjectLattice.getPropertyValue(module, name.toString)).head
+    }.toMap
+    (state, classes)
+  }
+
+  private def names(linearizations: Set[List[ObjectLabel]]): Set[String] =
+    linearizations.map(_.map((label) => classes.find(_._2 == label).map(_._1).getOrElse("O")).mkString)
+
+  test("linearizes by C3, once for each choice of bases") {
+    val mro = new ClassMRO()
+    checkEqual(names(mro.linearize(classes("A"), state)), Set("ABCDEFO", "ABCDEGO"), "linearizations of A")
+    checkEqual(names(mro.linearize(classes("C"), state)), Set("CDFO", "CDGO"), "linearizations of C")
+    checkEqual(names(mro.linearize(classes("B"), state)), Set("BDEO"), "linearizations of B")
+  }
+
+  test("rejects an inconsistent order") {
+    try {
+      new ClassMRO().linearize(classes("H"), state)
+      check(false, "H(D, B) has a linearization")
+    } catch {
+      case e: TypeError =>
+    }
+  }
+
+  test("keeps the linearizations of a class") {
+    val mro = new ClassMRO()
+    val linearizations = mro.linearize(classes("A"), state)
+    check(mro.linearize(classes("A"), state) eq linearizations, "the linearizations of A are computed again")
+  }
+
+  test("each analysis has linearizations of its own") {
+    val dir = programDir()
+    val cfg = CFGCache.build(new File(dir, "main.py"), "__main__")
+    check(new TypeAnalysis(cfg).classMRO ne new TypeAnalysis(cfg).classMRO, "two analyses share their linearizations")
+  }
+}
@@ -0,0 +1,98 @@
+package tapy.tests
+
+import java.io.File
+import tapy.cfg._
+import tapy.dfa._
+import tapy.lattices._
+import tapy.typeanalysis._
+
+/**
+ * That --gc only removes heap objects that are unreachable: the objects that are missing from
+ * the heap at the exit of an analysis with garbage collection must not be reachable in the heap
+ * of the analysis without. The reachability is computed here rather than by GarbageCollection,
+ * from the modules, the scope chains, the registers and the builtin object class.
+ */
+object GarbageCollectionTests extends Suite {
+
+  private type Heap = Map[ObjectLabel, ObjectLattice.Elt]
+
+  private def exitState(result: AnalysisTests.Result): StateLattice.Elt = {
+    val exit = result.cfg.exitNodes.head
+    AnalysisLattice.getState(exit, result.worklist.materialize(exit, result.solution))
+  }
+
+  private def heap(state: StateLattice.Elt): Heap = StateLattice.getHeap(state) match {
+    case HeapLattice.Concrete(map) => map
+    case _ => throw new AssertionError("the heap at the exit is top")
+  }
+
+  private def labels(value: ValueLattice.Elt): Set[ObjectLabel] = {
+    val labels = ValueLattice.getObjectLabels(value)
+    if (labels == null) throw new AssertionError("a value with top object labels") else labels.toSet
+  }
+
+  private def roots(state: StateLattice.Elt, heap: Heap): Set[ObjectLabel] = {
+    val registers = StackLattice.getStackFrame(StateLattice.getStack(state)) match {
+      case StackFrameLattice.Concrete(registers) => registers.values.flatMap(labels).toSet
+      case _ => throw new AssertionError("the registers at the exit are top")
+    }
+    heap.keySet.filter(_.isInstanceOf[ModuleScopeObjectLabel]) ++
+      ExecutionContextLattice.getVariableObjectsOnScopeChains(StateLattice.getExecutionContexts(state)).flatten ++
+      registers + BuiltIn.objectLabel
+  }
+
+  // The labels that a label refers to, and the labels that its object refers to
+  private def successors(label: ObjectLabel, heap: Heap): Set[ObjectLabel] = {
+    val embedded: Set[ObjectLabel] = label match {
+      case label: BoundMethodObjectLabel => Set(label.instance, label.functionLabel)
+      case label: UnboundMethodObjectLabel => Set(label.functionLabel)
+      case label: WrapperObjectLabel => Set(label.label)
+      case label: NewStyleInstanceObjectLabel => Set(label.classLabel)
+      case label: OldStyleInstanceObjectLabel => Set(label.classLabel)
+      case label: NewStyleClassObjectLabel => label.bases.flatten.toSet
+      case label: OldStyleClassObjectLabel => label.bases.flatten.toSet
+      case _ => Set()
+    }
+    heap.get(label) match {
+      case None => embedded
+      case Some(obj) =>
+        val properties = ObjectLattice.getProperties(obj) match {
+          case PropertiesLattice.Concrete(properties) => properties.values.flatMap((property) => labels(PropertyLattice.getValue(property))).toSet
+          case _ => throw new AssertionError("the properties of " + label + " are top")
+        }
+        val scopeChains = ObjectLattice.getScopeChain(obj)
+        if (scopeChains == null)
+          throw new AssertionError("the scope chains of " + label + " are top")
+        embedded ++ properties ++ scopeChains.flatten
+    }
+  }
+
+  private def reachable(roots: Set[ObjectLabel], heap: Heap): Set[ObjectLabel] = {
+    var reached = roots
+    var pending = roots.toList
+    while (!pending.isEmpty) {
+      val next = successors(pending.head, heap) -- reached
+      reached = reached ++ next
+      pending = next.toList ++ pending.tail
+    }
+    reached
+  }
+
+  test("gc.py: the objects removed by --gc are unreachable") {
+    val file = new File("test/analysis/gc.py")
+    val cfgCache = new CFGCache(tempDir())
+    val kept = AnalysisTests.analyze(file, Options(), cfgCache)
+    val collected = AnalysisTests.analyze(file, Options(garbageCollection = true), cfgCache)
+    check(collected.analysis.collectedObjects > 0, "no objects were removed")
+
+    val keptState = exitState(kept)
+    val keptHeap = heap(keptState)
+    val collectedHeap = heap(exitState(collected))
+    val removed = keptHeap.keySet -- collectedHeap.keySet
+    check(!removed.isEmpty, "the heaps at the exit have the same objects")
+    check(collectedHeap.keySet.subsetOf(keptHeap.keySet), "the heap with --gc has objects that the heap without has not: " + (collectedHeap.keySet -- keptHeap.keySet))
+
+    val live = reachable(roots(keptState, keptHeap), keptHeap)
+    checkEqual(removed.intersect(live), Set[ObjectLabel](), "reachable objects removed by --gc")
+  }
+}
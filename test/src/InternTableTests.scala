@@ -0,0 +1,45 @@
+package tapy.tests
+
+import tapy.dfa._
+import tapy.lattices._
+
+/**
+ * The tables that canonicalize and memoize lattice elements, and that they can be cleared
+ * between analyses.
+ */
+object InternTableTests extends Suite {
+
+  test("InternTable gives equal elements one instance") {
+    val table = new InternTable[String]()
+    val canonical = table.intern(new String("a"))
+    check(table.intern(new String("a")) eq canonical, "an equal element is not interned to the first one")
+    check(table.lookup(new String("a")) eq canonical, "lookup does not find the interned element")
+    check(table.lookup("b") == null, "lookup finds an element that was not interned")
+
+    table.clear()
+    check(table.lookup("a") == null, "lookup finds an element after clear")
+    check(table.intern(new String("a")) ne canonical, "clear keeps the interned elements")
+  }
+
+  test("BoundedCache evicts the least recently used entries") {
+    val cache = new BoundedCache[Int, String](4)
+    (0 until 4).foreach((i) => cache.getOrElseUpdate(i, "v" + i))
+    cache.getOrElseUpdate(0, "unused")
+    cache.getOrElseUpdate(4, "v4")
+    checkEqual(cache.size, 4, "size")
+    checkEqual(cache.getOrElseUpdate(0, "new"), "v0", "entry that was used last")
+    checkEqual(cache.getOrElseUpdate(1, "new"), "new", "evicted entry")
+
+    cache.clear()
+    checkEqual(cache.size, 0, "size after clear")
+  }
+
+  test("joins are the same after the caches of ValueLattice are cleared") {
+    val values = List(ValueLattice.setInteger(1), ValueLattice.setInteger(2), ValueLattice.setString("s"), ValueLattice.setNone(NoneLattice.top))
+    val joins = for (a <- values; b <- values) yield ValueLattice.leastUpperBound(a, b)
+    ValueLattice.clearCaches()
+    val cleared = for (a <- values; b <- values) yield ValueLattice.leastUpperBound(a, b)
+    checkEqual(cleared, joins, "joins")
+    check(ValueLattice.greatestLowerBound(values(0), values(2)) eq ValueLattice.bottom, "bottom is no longer the canonical bottom")
+  }
+}
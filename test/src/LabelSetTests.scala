@@ -0,0 +1,105 @@
+package tapy.tests
+
+import scala.util.Random
+import tapy.lattices._
+
+/**
+ * LabelSet against the sets of the standard library, on random sets of labels, and the ids
+ * of ObjectLabelTable.
+ */
+object LabelSetTests extends Suite {
+
+  // Labels whose ids are handed out in a random order
+  private val random = new Random(42)
+  private val labels = random.shuffle((0 until 64).toList).map((i) => ModuleScopeObjectLabel("label" + i): ObjectLabel).toArray
+  labels.foreach(_.id)
+
+  private def randomSet(): Set[ObjectLabel] = labels.filter((_) => random.nextInt(3) == 0).toSet
+
+  private def pairs(): List[(Set[ObjectLabel], Set[ObjectLabel])] =
+    (0 until 200).map((_) => (randomSet(), randomSet())).toList ++
+    List((Set[ObjectLabel](), randomSet()), (randomSet(), Set[ObjectLabel]()), (labels.toSet, randomSet()))
+
+  test("equal to the set of its labels") {
+    pairs().foreach {(pair) =>
+      val set = LabelSet(pair._1)
+      checkEqual(set, pair._1, "LabelSet")
+      check(pair._1 == set, "set " + pair._1 + " differs from the LabelSet of it")
+      checkEqual(set.hashCode, pair._1.hashCode, "hash code of " + set)
+      checkEqual(set.size, pair._1.size, "size of " + set)
+    }
+  }
+
+  test("iterates in the order of the ids") {
+    pairs().foreach {(pair) =>
+      val ids = LabelSet(pair._1).toList.map(_.id)
+      checkEqual(ids, ids.sorted, "order")
+    }
+  }
+
+  test("drops duplicates") {
+    val set = LabelSet(List(labels(0), labels(1), ModuleScopeObjectLabel(labels(0).asInstanceOf[ModuleScopeObjectLabel].label), labels(1)))
+    checkEqual(set.size, 2, "size")
+  }
+
+  test("contains") {
+    pairs().foreach {(pair) =>
+      val set = LabelSet(pair._1)
+      labels.foreach((label) => checkEqual(set.contains(label), pair._1.contains(label), "contains " + label + " in " + set))
+    }
+  }
+
+  test("union, intersect and subsetOf") {
+    pairs().foreach {(pair) =>
+      val (a, b) = (LabelSet(pair._1), LabelSet(pair._2))
+      checkEqual(a.union(b), pair._1 ++ pair._2, "union")
+      checkEqual(a ++ b, pair._1 ++ pair._2, "++")
+      checkEqual(a.intersect(b), pair._1.intersect(pair._2), "intersect")
+      checkEqual(a.subsetOf(b), pair._1.subsetOf(pair._2), "subsetOf")
+      checkEqual(a.subsetOf(a.union(b)), true, "subsetOf of the union")
+      checkEqual(a.intersect(b).subsetOf(a), true, "subsetOf of the intersection")
+    }
+  }
+
+  test("adding and removing labels") {
+    pairs().foreach {(pair) =>
+      val set = LabelSet(pair._1)
+      labels.take(8).foreach {(label) =>
+        checkEqual(set + label, pair._1 + label, "+ " + label)
+        checkEqual(set - label, pair._1 - label, "- " + label)
+      }
+    }
+  }
+
+  test("lattice operations") {
+    pairs().foreach {(pair) =>
+      val (a, b) = (ObjectLabelLattice.fromSet(pair._1), ObjectLabelLattice.fromSet(pair._2))
+      checkEqual(ObjectLabelLattice.leastUpperBound(a, b), pair._1 ++ pair._2, "leastUpperBound")
+      checkEqual(ObjectLabelLattice.greatestLowerBound(a, b), pair._1.intersect(pair._2), "greatestLowerBound")
+      checkEqual(ObjectLabelLattice.compare(a, b), pair._1.subsetOf(pair._2), "compare")
+    }
+  }
+
+  test("equal labels share an id") {
+    val label = NewStyleClassObjectLabel(null, null, null, List(Set(labels(0), labels(1))))
+    val equal = NewStyleClassObjectLabel(null, null, null, List(Set(labels(1), labels(0))))
+    val other = NewStyleClassObjectLabel(null, null, null, List(Set(labels(1))))
+    checkEqual(label.id, equal.id, "id of an equal label")
+    checkEqual(label.hashCode, equal.hashCode, "hash code of an equal label")
+    check(label.id != other.id, "labels with different bases share an id")
+  }
+
+  test("labels that are no longer used are dropped from the table") {
+    def create(): Unit = (0 until 10000).foreach((i) => ModuleScopeObjectLabel("dropped" + i).id)
+    create()
+    val created = ObjectLabelTable.size
+    var attempts = 0
+    while (ObjectLabelTable.size >= created && attempts < 20) {
+      System.gc()
+      Thread.sleep(20)
+      attempts += 1
+    }
+    check(ObjectLabelTable.size < created, "the table still has " + ObjectLabelTable.size + " labels")
+    labels.foreach((label) => checkEqual(ModuleScopeObjectLabel(label.asInstanceOf[ModuleScopeObjectLabel].label).id, label.id, "id of " + label))
+  }
+}
@@ -0,0 +1,82 @@
+package tapy.tests
+
+import java.io.File
+import java.nio.file.{Files, StandardCopyOption}
+import scala.collection.mutable.ListBuffer
+
+/**
+ * Runs the test suites, and exits with status 1 if a test failed. A suite is a list of
+ * named tests, each of which fails by throwing.
+ *
+ * Run with: make test, or
+ *   scala -J-Xss64m -cp "bin:test/bin:lib/jython-2.7-b1.jar" tapy.tests.Tests [SUITE...]
+ */
+object Tests {
+
+  val suites = List(LabelSetTests, InternTableTests, CFGCacheTests, BuiltinSnapshotTests, ClassMROTests, AnalysisTests, GarbageCollectionTests, BudgetTests)
+
+  def main(args: Array[String]): Unit = {
+    val selected = if (args.isEmpty) suites else suites.filter((suite) => args.contains(suite.name))
+    val failures = selected.map(_.run()).sum
+    println()
+    println(if (failures == 0) "All tests passed" else failures + " tests failed")
+    if (failures > 0)
+      sys.exit(1)
+  }
+}
+
+abstract class Suite {
+  private val tests = ListBuffer[(String, () => Unit)]()
+
+  def name: String = getClass().getSimpleName().stripSuffix("$")
+
+  def test(name: String)(body: => Unit): Unit = tests += ((name, () => body))
+
+  def check(condition: Boolean, message: => String): Unit =
+    if (!condition)
+      throw new AssertionError(message)
+
+  def checkEqual[T](actual: T, expected: T, what: => String = "value"): Unit =
+    check(actual == expected, what + " is " + actual + ", expected " + expected)
+
+  def tempDir(): File = Files.createTempDirectory("tapy-test").toFile()
+
+  def write(dir: File, name: String, source: String): File = {
+    val file = new File(dir, name)
+    Files.write(file.toPath(), source.getBytes("UTF-8"))
+    file
+  }
+
+  /** A directory with a program, main.py, which imports a module, and __builtin__. */
+  def programDir(): File = {
+    val dir = tempDir()
+    Files.copy(new File("test/analysis/__builtin__.py").toPath(), new File(dir, "__builtin__.py").toPath(), StandardCopyOption.REPLACE_EXISTING)
+    write(dir, "module.py", "def f(a):\n  return a\nx = 1\n")
+    write(dir, "main.py", "import module\ny = module.f(module.x)\nz = module.f('s')\n")
+    dir
+  }
+
+  /** The number of files in dir whose names end with suffix. */
+  def cacheFiles(dir: File, suffix: String): Int = dir.listFiles().count(_.getName().endsWith(suffix))
+
+  /** Runs the tests and returns the number of failures. */
+  def run(): Int = {
+    println(name)
+    tests.foldLeft(0) {(failures, test) =>
+      val (name, body) = test
+      try {
+        body()
+        println("  ok      " + name)
+        failures
+      } catch {
+        case e: AssertionError =>
+          println("  FAILED  " + name + ": " + e.getMessage())
+          failures + 1
+        case e: Exception =>
+          println("  FAILED  " + name + ": " + e)
+          e.printStackTrace(System.out)
+          failures + 1
+      }
+    }
+  }
+}